@@ -0,0 +1,262 @@
+package concurrentcube;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// lets in moves of one type at a time (rotations via one plane or shows);
+// state of the cube is one word, so entering and leaving while nobody
+// waits is a single compare and set, lock is taken only to wait or to
+// hand the cube over to waiting type
+class Admission {
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
+    private static final int TYPE_SHIFT = 32;
+    private static final long TYPE_MASK = 0x7L << TYPE_SHIFT;
+    // set while some thread waits, newcomers can't enter then
+    private static final long WAITERS = 1L << 40;
+
+    private final int types;
+    private final SchedulingPolicy policy;
+    private final SpinWait spinWait;
+    // number of working threads, their type and waiters flag
+    private final AtomicLong state = new AtomicLong();
+    // when somebody started waiting for the working type to finish and how
+    // many moves of the working type came in since, valid with waiters flag
+    private volatile long waitingSince;
+    private final AtomicInteger joined = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    // guarded by lock
+    private final ArrayDeque<Waiter>[] queues;
+    private final int[] waitingCounts;
+    // copy of waitingCounts handed to the policy, which may change it
+    private final int[] policyCounts;
+    private int waitingCount = 0;
+    private int lastType = 0;
+
+    private static class Waiter {
+        final Thread thread = Thread.currentThread();
+        volatile boolean admitted = false;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Admission(int types, SchedulingPolicy policy, SpinWait spinWait) {
+        this.types = types;
+        this.policy = policy;
+        this.spinWait = spinWait;
+        this.waitingCounts = new int[types];
+        this.policyCounts = new int[types];
+        this.queues = new ArrayDeque[types];
+        for (int i = 0; i < types; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+    }
+
+    private static long count(long s) {
+        return s & COUNT_MASK;
+    }
+
+    private static int type(long s) {
+        return (int) ((s & TYPE_MASK) >>> TYPE_SHIFT);
+    }
+
+    private static long encode(int type, long count, boolean waiters) {
+        return ((long) type << TYPE_SHIFT) | count | (waiters ? WAITERS : 0);
+    }
+
+    // waits until moves of given type can happen, waiting itself
+    // is not interrupted (interrupt status is kept)
+    void enter(int type) throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        if (tryFastEnter(type))
+            return;
+        long start = System.nanoTime();
+        Waiter waiter = enqueue(type);
+        if (waiter != null && !spinWait.spin(start, () -> waiter.admitted)) {
+            // park returns at once while interrupt status is set, so it is
+            // cleared for the wait and set again afterwards
+            boolean interrupted = false;
+            while (!waiter.admitted) {
+                LockSupport.park(this);
+                interrupted |= Thread.interrupted();
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        spinWait.record(start);
+    }
+
+    // like enter, but gives up after given time (at once if it isn't
+    // positive) and tells whether it has entered; interrupt cuts waiting
+    // short unless the thread has been admitted meanwhile
+    boolean enter(int type, long nanos) throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        if (tryFastEnter(type))
+            return true;
+        if (nanos <= 0)
+            return false;
+        long start = System.nanoTime();
+        Waiter waiter = enqueue(type);
+        if (waiter != null && !spinWait.spin(start, () -> waiter.admitted)) {
+            while (!waiter.admitted) {
+                long remaining = nanos - (System.nanoTime() - start);
+                boolean interrupted = Thread.currentThread().isInterrupted();
+                if ((remaining <= 0 || interrupted) && cancel(type, waiter)) {
+                    if (interrupted && Thread.interrupted())
+                        throw new InterruptedException();
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+        spinWait.record(start);
+        return true;
+    }
+
+    void exit(int type) {
+        while (true) {
+            long s = state.get();
+            if (count(s) == 1 && (s & WAITERS) != 0) {
+                slowExit(type);
+                return;
+            }
+            if (state.compareAndSet(s, s - 1))
+                return;
+        }
+    }
+
+    // working type may be joined while others wait if policy allows it
+    private boolean canEnter(long s, int type) {
+        if (count(s) == 0)
+            return (s & WAITERS) == 0;
+        if (type(s) != type)
+            return false;
+        return (s & WAITERS) == 0 || policy.mayJoin(joined.get(), waitingSince);
+    }
+
+    private boolean tryEnter(long s, int type) {
+        if (!state.compareAndSet(s, (s & WAITERS) | encode(type, count(s) + 1, false)))
+            return false;
+        if ((s & WAITERS) != 0)
+            joined.incrementAndGet();
+        return true;
+    }
+
+    private boolean tryFastEnter(int type) {
+        while (true) {
+            long s = state.get();
+            if (!canEnter(s, type))
+                return false;
+            if (tryEnter(s, type))
+                return true;
+        }
+    }
+
+    // either enters or returns waiter which will be admitted later
+    private Waiter enqueue(int type) {
+        lock.lock();
+        try {
+            while (true) {
+                long s = state.get();
+                if (canEnter(s, type)) {
+                    if (tryEnter(s, type))
+                        return null;
+                    continue;
+                }
+                if ((s & WAITERS) == 0)
+                    startWaiting();
+                if (state.compareAndSet(s, s | WAITERS))
+                    break;
+            }
+            Waiter waiter = new Waiter();
+            queues[type].add(waiter);
+            waitingCounts[type]++;
+            waitingCount++;
+            if (count(state.get()) == 0)
+                admitNext(lastType);
+            return waiter;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void slowExit(int type) {
+        lock.lock();
+        try {
+            long s = state.getAndDecrement();
+            // waiter giving up may have cleared the waiters flag meanwhile,
+            // then the cube is simply free and newcomers may be in already
+            if (count(s) == 1 && (s & WAITERS) != 0)
+                admitNext(type);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // takes waiter out of its queue, unless it has been admitted already;
+    // when nobody waits anymore newcomers may enter again
+    private boolean cancel(int type, Waiter waiter) {
+        lock.lock();
+        try {
+            if (waiter.admitted)
+                return false;
+            queues[type].remove(waiter);
+            waitingCounts[type]--;
+            waitingCount--;
+            if (waitingCount == 0)
+                clearWaiters();
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // called with lock held
+    private void startWaiting() {
+        waitingSince = System.nanoTime();
+        joined.set(0);
+    }
+
+    // working threads may still come and go, their count is left alone
+    private void clearWaiters() {
+        while (true) {
+            long s = state.get();
+            if (state.compareAndSet(s, s & ~WAITERS))
+                return;
+        }
+    }
+
+    // cube is empty and waiters flag keeps newcomers out, so nobody else
+    // changes the state; lets in all waiters of the type chosen by policy;
+    // called with lock held
+    private void admitNext(int previous) {
+        if (waitingCount == 0) {
+            clearWaiters();
+            return;
+        }
+        System.arraycopy(waitingCounts, 0, policyCounts, 0, types);
+        int next = policy.next(previous, policyCounts);
+        // nobody would be admitted and the cube would stay taken for good
+        if (next < 0 || next >= types || waitingCounts[next] == 0)
+            next = SchedulingPolicy.roundRobin(previous, waitingCounts);
+        ArrayDeque<Waiter> queue = queues[next];
+        int admitted = queue.size();
+        waitingCounts[next] = 0;
+        waitingCount -= admitted;
+        lastType = next;
+        if (waitingCount != 0)
+            startWaiting();
+        state.set(encode(next, admitted, waitingCount != 0));
+        for (Waiter waiter : queue) {
+            waiter.admitted = true;
+            LockSupport.unpark(waiter.thread);
+        }
+        queue.clear();
+    }
+}
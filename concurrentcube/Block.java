@@ -1,12 +1,33 @@
 package concurrentcube;
 
+// blocks are immutable and there are only as many colours as sides,
+// so all blocks of one colour are the same object
 public class Block {
+    private static final Block[] BLOCKS = new Block[Cube.SIDES_NUMBER];
+
+    static {
+        for (int colour = 0; colour < Cube.SIDES_NUMBER; colour++) {
+            BLOCKS[colour] = new Block(colour);
+        }
+    }
+
     private final int colour;
 
+    // kept for code written before blocks were shared, Block.of gives
+    // a shared block instead
+    @Deprecated
     public Block(int colour) {
         this.colour = colour;
     }
 
+    public static Block of(int colour) {
+        return BLOCKS[colour];
+    }
+
+    public int getColour() {
+        return colour;
+    }
+
     @Override
     public String toString() {
         return String.valueOf(colour);
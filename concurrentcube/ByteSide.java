@@ -0,0 +1,126 @@
+package concurrentcube;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// one byte per block, blocks stored row by row
+public class ByteSide extends Side {
+    // eight blocks of a row read or written as one long
+    private static final VarHandle WORDS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final byte[] blocks;
+
+    public ByteSide(int layers, int colour) {
+        super(layers);
+        this.blocks = new byte[layers * layers];
+        Arrays.fill(blocks, (byte) colour);
+    }
+
+    @Override
+    protected int load(int i, int j) {
+        return blocks[i * layers + j];
+    }
+
+    @Override
+    protected void store(int i, int j, int colour) {
+        blocks[i * layers + j] = (byte) colour;
+    }
+
+    @Override
+    protected void cycleStored(Strip[] strips, int from, int to) {
+        int last = strips.length - 1;
+        if (storedRows(strips))
+            from = cycleWords(strips, from, to);
+        if (strips.length == 4) {
+            cycleFour(strips, from, to);
+            return;
+        }
+        if (strips.length == 2) {
+            swapTwo(strips, from, to);
+            return;
+        }
+        for (int k = from; k < to; k++) {
+            byte temp = block(strips[0], k);
+            for (int s = 0; s < last; s++) {
+                blocks(strips[s])[strips[s].start + k * strips[s].step] = block(strips[s + 1], k);
+            }
+            blocks(strips[last])[strips[last].start + k * strips[last].step] = temp;
+        }
+    }
+
+    // quarter turn, strips are read into locals once instead of per block
+    private static void cycleFour(Strip[] strips, int from, int to) {
+        byte[] a = blocks(strips[0]), b = blocks(strips[1]), c = blocks(strips[2]), d = blocks(strips[3]);
+        int startA = strips[0].start, startB = strips[1].start, startC = strips[2].start, startD = strips[3].start;
+        int stepA = strips[0].step, stepB = strips[1].step, stepC = strips[2].step, stepD = strips[3].step;
+        for (int k = from; k < to; k++) {
+            int p = startA + k * stepA, q = startB + k * stepB, r = startC + k * stepC, t = startD + k * stepD;
+            byte temp = a[p];
+            a[p] = b[q];
+            b[q] = c[r];
+            c[r] = d[t];
+            d[t] = temp;
+        }
+    }
+
+    // half turn exchanges opposite strips
+    private static void swapTwo(Strip[] strips, int from, int to) {
+        byte[] a = blocks(strips[0]), b = blocks(strips[1]);
+        int startA = strips[0].start, startB = strips[1].start;
+        int stepA = strips[0].step, stepB = strips[1].step;
+        for (int k = from; k < to; k++) {
+            int p = startA + k * stepA, q = startB + k * stepB;
+            byte temp = a[p];
+            a[p] = b[q];
+            b[q] = temp;
+        }
+    }
+
+    private static byte[] blocks(Strip strip) {
+        return ((ByteSide) strip.side).blocks;
+    }
+
+    private static byte block(Strip strip, int k) {
+        return blocks(strip)[strip.start + k * strip.step];
+    }
+
+    private static boolean storedRows(Strip[] strips) {
+        for (Strip strip : strips) {
+            if (!strip.isStoredRow())
+                return false;
+        }
+        return true;
+    }
+
+    // cycles blocks of rows eight at a time, backward rows are read and
+    // written with bytes of a word reversed; returns first block not moved
+    private static int cycleWords(Strip[] strips, int from, int to) {
+        int last = strips.length - 1;
+        int k = from;
+        for (; k + Long.BYTES <= to; k += Long.BYTES) {
+            long temp = readWord(strips[0], k);
+            for (int s = 0; s < last; s++) {
+                writeWord(strips[s], k, readWord(strips[s + 1], k));
+            }
+            writeWord(strips[last], k, temp);
+        }
+        return k;
+    }
+
+    // blocks k, k + 1, ..., k + 7 of a row, block k in the lowest byte
+    private static long readWord(Strip row, int k) {
+        if (row.step > 0)
+            return (long) WORDS.get(blocks(row), row.start + k);
+        return Long.reverseBytes((long) WORDS.get(blocks(row), row.start - k - Long.BYTES + 1));
+    }
+
+    private static void writeWord(Strip row, int k, long word) {
+        if (row.step > 0)
+            WORDS.set(blocks(row), row.start + k, word);
+        else
+            WORDS.set(blocks(row), row.start - k - Long.BYTES + 1, Long.reverseBytes(word));
+    }
+}
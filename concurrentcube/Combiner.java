@@ -0,0 +1,134 @@
+package concurrentcube;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+// rotations of one plane are published here and whichever thread takes
+// the combiner role applies all of them, turns of every layer are added
+// up first so blocks of a layer are moved at most once per pass
+final class Combiner {
+    // requests taken by the combiner in one pass
+    static final int MAX_BATCH = 1024;
+
+    // rotation waiting to be applied, turns are clockwise quarter turns of
+    // plane's first side (one or three), layer is counted from that side
+    static final class Request {
+        final int side;
+        final int layer;
+        final int planeLayer;
+        final int turns;
+        final Thread thread = Thread.currentThread();
+        volatile boolean done = false;
+        // next request of the same layer, used only by the combiner
+        Request next;
+
+        Request(int side, int layer, int planeLayer, int turns) {
+            this.side = side;
+            this.layer = layer;
+            this.planeLayer = planeLayer;
+            this.turns = turns;
+        }
+    }
+
+    // applies requests of one layer which together turn it by given number
+    // of quarter turns (zero to three)
+    @FunctionalInterface
+    interface LayerBatch {
+        void apply(int planeLayer, int turns, Request requests);
+    }
+
+    private final ConcurrentLinkedQueue<Request> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean combining = new AtomicBoolean(false);
+    private final LayerBatch batch;
+    private final SpinWait spinWait;
+
+    // used only by the combiner
+    private final Request[] heads;
+    private final Request[] tails;
+    private final int[] turns;
+    private final int[] touched;
+
+    Combiner(int layers, LayerBatch batch, SpinWait spinWait) {
+        this.batch = batch;
+        this.spinWait = spinWait;
+        heads = new Request[layers];
+        tails = new Request[layers];
+        turns = new int[layers];
+        touched = new int[Math.min(layers, MAX_BATCH)];
+    }
+
+    // returns once the request is applied, by this or another thread;
+    // interrupt status is cleared while waiting, as park would return at
+    // once, and set again afterwards
+    void rotate(Request request) {
+        pending.add(request);
+        long start = System.nanoTime();
+        boolean interrupted = false;
+        while (!request.done) {
+            if (!combining.get() && combining.compareAndSet(false, true)) {
+                try {
+                    combine();
+                }
+                finally {
+                    combining.set(false);
+                }
+                // request published while the role was taken would be left
+                // behind, so its thread gets a chance to combine
+                Request first = pending.peek();
+                if (first != null)
+                    LockSupport.unpark(first.thread);
+            }
+            else if (!spinWait.spin(start, () -> request.done || !combining.get())) {
+                LockSupport.park(this);
+                interrupted |= Thread.interrupted();
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        spinWait.record(start);
+    }
+
+    private void combine() {
+        int layers = 0;
+        Request request;
+        for (int taken = 0; taken < MAX_BATCH && (request = pending.poll()) != null; taken++) {
+            int layer = request.planeLayer;
+            if (heads[layer] == null) {
+                heads[layer] = request;
+                touched[layers++] = layer;
+            }
+            else {
+                tails[layer].next = request;
+            }
+            tails[layer] = request;
+            turns[layer] = (turns[layer] + request.turns) % 4;
+        }
+
+        // waiting threads are let go even if some hook throws
+        try {
+            for (int t = 0; t < layers; t++) {
+                batch.apply(touched[t], turns[touched[t]], heads[touched[t]]);
+            }
+        }
+        finally {
+            for (int t = 0; t < layers; t++) {
+                release(touched[t]);
+            }
+        }
+    }
+
+    private void release(int layer) {
+        Request requests = heads[layer];
+        heads[layer] = null;
+        tails[layer] = null;
+        turns[layer] = 0;
+        while (requests != null) {
+            Request next = requests.next;
+            requests.done = true;
+            if (requests.thread != Thread.currentThread())
+                LockSupport.unpark(requests.thread);
+            requests = next;
+        }
+    }
+}
@@ -1,52 +1,185 @@
 package concurrentcube;
 
-import java.util.concurrent.Semaphore;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
 
-public class Cube {
+public class Cube implements AutoCloseable {
     static final int SIDES_NUMBER = 6;
     static final int MOVES = 4;
     static final int SHOW_TYPE = 3;
+    static final int OPTIMISTIC_ATTEMPTS = 4;
+    static final int STREAM_BUFFER_SIZE = 1 << 16;
+    // blocks rendered by one thread when show is split among the pool
+    static final int RENDER_CHUNK = 1 << 14;
 
     private final Side[] sides;
+    // strips moved by rotations of each layer counted from plane's first side
+    private final MoveTable.LayerStrips[] layerStrips;
     private final int size;
-    private final BiConsumer<Integer, Integer> beforeRotation;
-    private final BiConsumer<Integer, Integer> afterRotation;
+    // hooks are null when not given, then they are not called at all
+    private final RotationHook beforeRotation;
+    private final RotationHook afterRotation;
     private final Runnable beforeShowing;
     private final Runnable afterShowing;
+    private final boolean lazyFaceRotation;
+    // splits single rotations of big cubes among threads, null for small cubes
+    private final ForkJoinPool pool;
 
-    private int typeWorking = -1;
-    private int workingCount = 0;
-    private final int[] waitingCount = new int[MOVES];
-    private final Semaphore[] waiting = new Semaphore[MOVES];
-    private final Semaphore mutex = new Semaphore(1, true);
-    private final Semaphore[] layerWaiting;
+    private final Admission admission;
+    private final LayerLocks layerLocks;
+    // one for every plane when rotations are combined, otherwise null
+    private final Combiner[] combiners;
+    private final boolean optimisticShow;
+    // runs asynchronous rotations and shows
+    private final Executor executor;
+    // rotations which have started and finished changing blocks, counted
+    // only for optimistic show
+    private final AtomicLong rotationsStarted = new AtomicLong();
+    private final AtomicLong rotationsFinished = new AtomicLong();
+    // advanced by every rotation, last shown state is kept with the version
+    // it was rendered at
+    private final LongAdder version = new LongAdder();
+    private volatile ShownState lastShown;
+    private volatile boolean closed = false;
+    // direct buffers used by streaming shows, taken and given back
+    private final ConcurrentLinkedQueue<ByteBuffer> streamBuffers = new ConcurrentLinkedQueue<>();
+    // snapshot is published every snapshotMoves rotations (if positive) and
+    // once it is older than maxStaleness nanoseconds (if positive), unchanged
+    // faces are shared with the previous one only if snapshots were set in
+    // options
+    private final boolean snapshots;
+    private final int snapshotMoves;
+    private final long maxStaleness;
+    private final AtomicLong moves = new AtomicLong();
+    // publications asked for by rotations and not served yet, the one
+    // who asks first hands the publisher to the executor
+    private final AtomicInteger publications = new AtomicInteger();
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private volatile CubeSnapshot snapshot;
+    // faces changed since last snapshot, written by rotations and read
+    // by snapshots which exclude them
+    private final boolean[] changedFaces = new boolean[SIDES_NUMBER];
+
+    private static class ShownState {
+        final long version;
+        final String state;
+
+        ShownState(long version, String state) {
+            this.version = version;
+            this.state = state;
+        }
+    }
 
     public Cube(int size,
                 BiConsumer<Integer, Integer> beforeRotation,
                 BiConsumer<Integer, Integer> afterRotation,
                 Runnable beforeShowing,
                 Runnable afterShowing) {
+        this(size, beforeRotation, afterRotation, beforeShowing, afterShowing, new CubeOptions());
+    }
+
+    public Cube(int size,
+                BiConsumer<Integer, Integer> beforeRotation,
+                BiConsumer<Integer, Integer> afterRotation,
+                Runnable beforeShowing,
+                Runnable afterShowing,
+                CubeOptions options) {
+        this(size, hook(beforeRotation), hook(afterRotation), beforeShowing, afterShowing, options);
+    }
+
+    // cube with hooks given in options (none by default)
+    public Cube(int size) {
+        this(size, new CubeOptions());
+    }
+
+    public Cube(int size, CubeOptions options) {
+        this(size, options.getBeforeRotation(), options.getAfterRotation(),
+                options.getBeforeShowing(), options.getAfterShowing(), options);
+    }
+
+    private Cube(int size,
+                 RotationHook beforeRotation,
+                 RotationHook afterRotation,
+                 Runnable beforeShowing,
+                 Runnable afterShowing,
+                 CubeOptions options) {
         this.size = size;
         this.beforeRotation = beforeRotation;
         this.afterRotation = afterRotation;
         this.beforeShowing = beforeShowing;
         this.afterShowing = afterShowing;
+        this.lazyFaceRotation = options.isLazyFaceRotation();
+        this.pool = size >= options.getParallelThreshold() ? options.getPool() : null;
+        this.admission = new Admission(MOVES, options.getSchedulingPolicy(),
+                new SpinWait(options.isSpinning()));
+        this.optimisticShow = options.isOptimisticShow();
+        this.executor = options.getExecutor();
+        this.snapshots = options.isSnapshots();
+        this.snapshotMoves = options.getSnapshotMoves();
+        this.maxStaleness = options.getMaxStaleness();
+        SpinWait layerSpinWait = new SpinWait(options.isSpinning());
+        if (options.getLayerStripes() > 0)
+            this.layerLocks = new StripedLayerLocks(size, options.getLayerStripes(), layerSpinWait);
+        else
+            this.layerLocks = new SemaphoreLayerLocks(size, layerSpinWait);
+        if (options.isCombining()) {
+            this.combiners = new Combiner[SIDES_NUMBER / 2];
+            for (int plane = 0; plane < combiners.length; plane++) {
+                int currentPlane = plane;
+                combiners[plane] = new Combiner(size,
+                        (layer, turns, requests) -> rotateCombined(currentPlane, layer, turns, requests),
+                        new SpinWait(options.isSpinning()));
+            }
+        }
+        else {
+            this.combiners = null;
+        }
 
         sides = new Side[SIDES_NUMBER];
         for (int i = 0; i < SIDES_NUMBER; i++) {
-            sides[i] = new Side(size, i);
-        }
-
-        layerWaiting = new Semaphore[size];
-        for (int i = 0; i < MOVES; i++) {
-            waiting[i] = new Semaphore(0, true);
+            sides[i] = options.getStorage().newSide(size, i);
         }
+        layerStrips = new MoveTable.LayerStrips[size];
         for (int j = 0; j < size; j++) {
-            layerWaiting[j] = new Semaphore(1, true);
+            layerStrips[j] = new MoveTable.LayerStrips();
         }
     }
 
+    // releases storage of sides, cube can't be used after
+    @Override
+    public void close() {
+        closed = true;
+        lastShown = null;
+        for (Side side : sides) {
+            side.close();
+        }
+    }
+
+    private static RotationHook hook(BiConsumer<Integer, Integer> consumer) {
+        if (consumer == null)
+            return null;
+        return (side, layer) -> consumer.accept(side, layer);
+    }
+
     public int getSize() {
         return size;
     }
@@ -61,135 +194,240 @@ public class Cube {
         return sb.toString();
     }
 
-    private int allWaiting() {
-        return waitingCount[0] + waitingCount[1] + waitingCount[2] + waitingCount[3];
+    private void rotateFace(int side, boolean clockwise) {
+        if (lazyFaceRotation)
+            sides[side].rotate90Degrees(clockwise);
+        else
+            sides[side].rotateBlocks90Degrees(clockwise, pool);
+    }
+
+    private void rotateFaceHalf(int side) {
+        if (lazyFaceRotation)
+            sides[side].rotate180Degrees();
+        else
+            sides[side].rotateBlocks180Degrees(pool);
     }
 
     // implementation of rotations
-    private void properRotate(int side, int layer) throws InterruptedException {
-        int reflected = size - layer - 1;
-        switch (side) {
-            case 0 -> {
-                if (layer == 0)
-                    sides[0].rotate90Degrees(true);
-                if (layer == size - 1)
-                    sides[5].rotate90Degrees(false);
-                sides[4].swapRowWithRow(layer, layer, false, sides[1]);
-                sides[1].swapRowWithRow(layer, layer, false, sides[2]);
-                sides[2].swapRowWithRow(layer, layer, false, sides[3]);
-            }
-            case 1 -> {
-                if (layer == 0)
-                    sides[1].rotate90Degrees(true);
-                if (layer == size - 1)
-                    sides[3].rotate90Degrees(false);
-                sides[0].swapColumnWithColumn(layer, reflected, true, sides[4]);
-                sides[4].swapColumnWithColumn(reflected, layer, true, sides[5]);
-                sides[5].swapColumnWithColumn(layer, layer, false, sides[2]);
-            }
-            case 2 -> {
-                if (layer == 0)
-                    sides[2].rotate90Degrees(true);
-                if (layer == size - 1)
-                    sides[4].rotate90Degrees(false);
-                sides[0].swapRowWithColumn(reflected, reflected, true, sides[1]);
-                sides[1].swapColumnWithRow(reflected, layer, false, sides[5]);
-                sides[5].swapRowWithColumn(layer, layer, true, sides[3]);
-            }
-            case 3 -> {
-                if (layer == 0)
-                    sides[3].rotate90Degrees(true);
-                if (layer == size - 1)
-                    sides[1].rotate90Degrees(false);
-                sides[0].swapColumnWithColumn(reflected, reflected, false, sides[2]);
-                sides[2].swapColumnWithColumn(reflected, reflected, false, sides[5]);
-                sides[5].swapColumnWithColumn(reflected, layer, true, sides[4]);
-            }
-            case 4 -> {
-                if (layer == 0)
-                    sides[4].rotate90Degrees(true);
-                if (layer == size - 1)
-                    sides[2].rotate90Degrees(false);
-                sides[0].swapRowWithColumn(layer, reflected, false, sides[3]);
-                sides[3].swapColumnWithRow(reflected, reflected, true, sides[5]);
-                sides[5].swapRowWithColumn(reflected, layer, false, sides[1]);
-            }
-            case 5 -> {
-                if (layer == 0)
-                    sides[5].rotate90Degrees(true);
-                if (layer == size - 1)
-                    sides[0].rotate90Degrees(false);
-                sides[2].swapRowWithRow(reflected, reflected, false, sides[1]);
-                sides[1].swapRowWithRow(reflected, reflected, false, sides[4]);
-                sides[4].swapRowWithRow(reflected, reflected, false, sides[3]);
-            }
-            default -> {
-            }
-        }
+    private void properRotate(int side, int layer) {
+        version.increment();
+        if (layer == 0)
+            rotateFace(side, true);
+        if (layer == size - 1)
+            rotateFace(MoveTable.opposite(side), false);
+        Strip.cycle(strips(side, layer).all, pool);
+    }
+
+    // one exchange of opposite strips instead of two quarter turns
+    private void properHalfRotate(int side, int layer) {
+        version.increment();
+        if (layer == 0)
+            rotateFaceHalf(side);
+        if (layer == size - 1)
+            rotateFaceHalf(MoveTable.opposite(side));
+        MoveTable.LayerStrips strips = strips(side, layer);
+        Strip.cycle(strips.first, pool);
+        Strip.cycle(strips.second, pool);
+    }
+
+    // rotations of a layer hold its lock, so its strips are set by one
+    // rotation at a time
+    private MoveTable.LayerStrips strips(int side, int layer) {
+        return layerStrips[myLayer(side, layer)].set(sides, side, layer);
     }
 
     // implementation of show
     private String properShow() {
-        beforeShowing.run();
+        if (beforeShowing != null)
+            beforeShowing.run();
 
-        StringBuilder sb = new StringBuilder();
-        for (Side side : sides) {
-            sb.append(side.toString());
+        String result = readState();
+
+        if (afterShowing != null)
+            afterShowing.run();
+        return result;
+    }
+
+    // called while rotations are excluded, state is rendered again only
+    // if some rotation has happened since the last time
+    private String readState() {
+        checkOpen();
+        long current = version.sum();
+        ShownState shown = lastShown;
+        if (shown != null && shown.version == current)
+            return shown.state;
+        String state = renderState();
+        lastShown = new ShownState(current, state);
+        return state;
+    }
+
+    // state cached before close mustn't be given out after it
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("cube is closed");
+    }
+
+    private String renderState() {
+        byte[] state = new byte[SIDES_NUMBER * size * size];
+        render(state);
+        return new String(state, StandardCharsets.ISO_8859_1);
+    }
+
+    // on big cubes rows of all sides are split among threads of the pool
+    private void render(byte[] target) {
+        if (pool == null) {
+            for (int i = 0; i < SIDES_NUMBER; i++) {
+                sides[i].copyTo(target, i * size * size);
+            }
+        }
+        else {
+            pool.invoke(new Rendering(target, 0, SIDES_NUMBER * size));
         }
+    }
 
-        afterShowing.run();
-        return sb.toString();
+    // renders rows [from, to) counted through all sides one after another;
+    // tasks live only for one show, so they are never serialized
+    @SuppressWarnings("serial")
+    private class Rendering extends RecursiveAction {
+        private final byte[] target;
+        private final int from;
+        private final int to;
+
+        Rendering(byte[] target, int from, int to) {
+            this.target = target;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if ((long) (to - from) * size <= RENDER_CHUNK || to - from == 1) {
+                for (int row = from; row < to; ) {
+                    int side = row / size, last = Math.min(to, (side + 1) * size);
+                    sides[side].copyRows(target, row * size, row - side * size, last - side * size);
+                    row = last;
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Rendering(target, from, middle), new Rendering(target, middle, to));
+        }
+    }
+
+    // reads state while rotations may go on, gives null if some rotation
+    // was in progress or has started meanwhile
+    private String tryReadState() {
+        long finished = rotationsFinished.get();
+        long started = rotationsStarted.get();
+        if (started != finished)
+            return null;
+        checkOpen();
+        long current = version.sum();
+        ShownState shown = lastShown;
+        if (shown != null && shown.version == current)
+            return shown.state;
+        String state = renderState();
+        VarHandle.acquireFence();
+        if (rotationsStarted.get() != started)
+            return null;
+        lastShown = new ShownState(current, state);
+        return state;
+    }
+
+    // flags are written only if not set yet, so that rotations don't keep
+    // taking the cache line from each other
+    private void markChangedFaces(int side, int layer) {
+        MoveTable.markFaces(side, changedFaces);
+        if (layer == 0 && !changedFaces[side])
+            changedFaces[side] = true;
+        if (layer == size - 1 && !changedFaces[MoveTable.opposite(side)])
+            changedFaces[MoveTable.opposite(side)] = true;
     }
 
-    // responsible for proper rotations (some threads will wait on semaphores
+    // responsible for proper rotations (some threads will wait on layer locks
     // in case they are trying to move the same layer)
     private void rotateViaPlane(int side, int layer, int myLayer) throws InterruptedException {
-        layerWaiting[myLayer].acquire();
+        layerLocks.lock(myLayer);
 
-        beforeRotation.accept(side, layer);
-        properRotate(side, layer);
-        afterRotation.accept(side, layer);
+        applyRotation(side, layer, false);
 
-        layerWaiting[myLayer].release();
+        layerLocks.unlock(myLayer);
     }
 
-    // waits until current plane rotate (or show) can happen
-    private void beforeFunction(int moveType) throws InterruptedException {
-        mutex.acquire();
-        if (allWaiting() != 0 || (workingCount > 0 && typeWorking != moveType)) {
-            waitingCount[moveType]++;
-            mutex.release();
-            waiting[moveType].acquireUninterruptibly();
-            waitingCount[moveType]--;
-        }
-        if (workingCount == 0)
-            typeWorking = moveType;
-        workingCount++;
-        if (waitingCount[moveType] != 0)
-            waiting[moveType].release();
+    // called with the layer locked, hooks are called once for a half turn
+    // too, so that calls for one layer never nest
+    private void applyRotation(int side, int layer, boolean halfTurn) {
+        if (beforeRotation != null)
+            beforeRotation.accept(side, layer);
+        moveBlocks(side, layer, halfTurn);
+        if (afterRotation != null)
+            afterRotation.accept(side, layer);
+    }
+
+    private void moveBlocks(int side, int layer, boolean halfTurn) {
+        if (optimisticShow)
+            rotationsStarted.incrementAndGet();
+        if (halfTurn)
+            properHalfRotate(side, layer);
         else
-            mutex.release();
+            properRotate(side, layer);
+        if (optimisticShow)
+            rotationsFinished.incrementAndGet();
+        if (snapshots)
+            markChangedFaces(side, layer);
     }
 
-    private void afterFunction(int moveType) throws InterruptedException {
-        mutex.acquireUninterruptibly();
-        workingCount--;
-        if (workingCount == 0) {
-            typeWorking = -1;
-            boolean woke = false;
-            for (int i = 1; i <= MOVES; i++) {
-                int next = (moveType + i) % MOVES;
-                if (waitingCount[next] != 0) {
-                    waiting[next].release();
-                    woke = true;
-                    break;
+    // called by the combiner of the plane for rotations of one layer,
+    // blocks are moved once by the sum of their turns within hooks of the
+    // first rotation, hooks of the others follow in pairs so that calls
+    // for the layer never nest
+    private void rotateCombined(int plane, int layer, int turns, Combiner.Request requests) {
+        lockUninterruptibly(layer);
+        try {
+            for (Combiner.Request request = requests; request != null; request = request.next) {
+                if (beforeRotation != null)
+                    beforeRotation.accept(request.side, request.layer);
+                if (request == requests) {
+                    switch (turns) {
+                        case 1 -> moveBlocks(plane, layer, false);
+                        case 2 -> moveBlocks(plane, layer, true);
+                        case 3 -> moveBlocks(MoveTable.opposite(plane), size - layer - 1, false);
+                        default -> {}
+                    }
                 }
+                if (afterRotation != null)
+                    afterRotation.accept(request.side, request.layer);
             }
-            if (!woke)
-                mutex.release();
         }
-        else
-            mutex.release();
+        finally {
+            layerLocks.unlock(layer);
+        }
+    }
+
+    // combiner applies rotations of other threads, so it can't give up
+    // when interrupted
+    private void lockUninterruptibly(int layer) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                layerLocks.lock(layer);
+                break;
+            }
+            catch (InterruptedException exception) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    // waits until current plane rotate (or show) can happen
+    private void beforeFunction(int moveType) throws InterruptedException {
+        admission.enter(moveType);
+    }
+
+    private void afterFunction(int moveType) throws InterruptedException {
+        admission.exit(moveType);
         if (Thread.currentThread().isInterrupted())
             throw new InterruptedException();
     }
@@ -197,32 +435,206 @@ public class Cube {
     // threads are waiting for a moment when the cube will be able to rotate
     // via given plane
     public void rotate(int side, int layer) throws InterruptedException {
-        int currentPlane = -1;
-        switch (side) {
-            case 0, 5 -> currentPlane = 0;
-            case 1, 3 -> currentPlane = 1;
-            case 2, 4 -> currentPlane = 2;
-            default -> {}
+        int currentPlane = plane(side);
+        int myLayer = myLayer(side, layer);
+
+        beforeFunction(currentPlane);
+
+        try {
+            if (!Thread.currentThread().isInterrupted()) {
+                if (combiners != null)
+                    combiners[currentPlane].rotate(new Combiner.Request(side, layer, myLayer, side < 3 ? 1 : 3));
+                else
+                    rotateViaPlane(side, layer, myLayer);
+            }
+        }
+        catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            afterFunction(currentPlane);
+        }
+
+        movesDone(1);
+    }
+
+    // rotates only if the cube lets it in and its layer is free right away,
+    // tells whether it has rotated
+    public boolean tryRotate(int side, int layer) throws InterruptedException {
+        return tryRotate(side, layer, 0, TimeUnit.NANOSECONDS);
+    }
+
+    // waits for its turn and for the layer at most given time altogether;
+    // combined rotations can't give up once they are let in
+    public boolean tryRotate(int side, int layer, long timeout, TimeUnit unit) throws InterruptedException {
+        long start = System.nanoTime();
+        long nanos = unit.toNanos(timeout);
+        int currentPlane = plane(side);
+        int myLayer = myLayer(side, layer);
+
+        if (!admission.enter(currentPlane, nanos))
+            return false;
+
+        boolean rotated = false;
+        try {
+            if (!Thread.currentThread().isInterrupted()) {
+                if (combiners != null) {
+                    combiners[currentPlane].rotate(new Combiner.Request(side, layer, myLayer, side < 3 ? 1 : 3));
+                    rotated = true;
+                }
+                else if (layerLocks.tryLock(myLayer, nanos - (System.nanoTime() - start))) {
+                    applyRotation(side, layer, false);
+                    layerLocks.unlock(myLayer);
+                    rotated = true;
+                }
+            }
+        }
+        catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            afterFunction(currentPlane);
+        }
+
+        if (rotated)
+            movesDone(1);
+        return rotated;
+    }
+
+    private static int plane(int side) {
+        return switch (side) {
+            case 0, 5 -> 0;
+            case 1, 3 -> 1;
+            case 2, 4 -> 2;
+            default -> -1;
+        };
+    }
+
+    // layer counted from the side of plane's first face
+    private int myLayer(int side, int layer) {
+        return side >= 3 ? size - layer - 1 : layer;
+    }
+
+    // same as rotating one move after another, but consecutive moves of
+    // the same plane are done within one admission and lock their layers once
+    public void rotateAll(int[] sides, int[] layers) throws InterruptedException {
+        if (sides.length != layers.length)
+            throw new IllegalArgumentException("got " + sides.length + " sides and " + layers.length + " layers");
+        int to;
+        for (int from = 0; from < sides.length; from = to) {
+            int currentPlane = plane(sides[from]);
+            to = from + 1;
+            while (to < sides.length && plane(sides[to]) == currentPlane) {
+                to++;
+            }
+            rotateGroup(currentPlane, sides, layers, null, from, to);
+        }
+    }
+
+    // folds the sequence first: turns of a layer within a run of rotations of
+    // one plane add up, so rotations cancelling each other are skipped and
+    // two quarter turns become one half turn; hooks see the folded sequence,
+    // a half turn is a single rotation for them
+    public void rotateOptimized(int[] sides, int[] layers) throws InterruptedException {
+        MoveOptimizer optimizer = new MoveOptimizer(size, sides, layers);
+        int length = optimizer.length();
+        int[] foldedSides = new int[length];
+        int[] foldedLayers = new int[length];
+        boolean[] halfTurns = new boolean[length];
+        for (int k = 0; k < length; k++) {
+            foldedSides[k] = optimizer.side(k);
+            foldedLayers[k] = optimizer.layer(k);
+            halfTurns[k] = optimizer.isHalfTurn(k);
+        }
+        int to;
+        for (int from = 0; from < length; from = to) {
+            int currentPlane = plane(foldedSides[from]);
+            to = from + 1;
+            while (to < length && plane(foldedSides[to]) == currentPlane) {
+                to++;
+            }
+            rotateGroup(currentPlane, foldedSides, foldedLayers, halfTurns, from, to);
+        }
+    }
+
+    // half turns are given only for folded sequences
+    private void rotateGroup(int currentPlane, int[] sides, int[] layers, boolean[] halfTurns, int from, int to)
+            throws InterruptedException {
+        // distinct layers in increasing order, so that groups locking
+        // overlapping layers can't deadlock
+        int[] locked = new int[to - from];
+        for (int i = from; i < to; i++) {
+            locked[i - from] = myLayer(sides[i], layers[i]);
+        }
+        Arrays.sort(locked);
+        int count = 0;
+        for (int layer : locked) {
+            if (count == 0 || locked[count - 1] != layer)
+                locked[count++] = layer;
         }
-        int myLayer = layer;
-        if (side >= 3)
-            myLayer = size - layer - 1;
 
         beforeFunction(currentPlane);
 
+        int acquired = 0;
         try {
-            if (!Thread.currentThread().isInterrupted())
-                rotateViaPlane(side, layer, myLayer);
+            while (acquired < count && !Thread.currentThread().isInterrupted()) {
+                layerLocks.lock(locked[acquired]);
+                acquired++;
+            }
+            if (acquired == count) {
+                for (int i = from; i < to; i++) {
+                    applyRotation(sides[i], layers[i], halfTurns != null && halfTurns[i]);
+                }
+            }
         }
         catch (InterruptedException exception) {
             Thread.currentThread().interrupt();
         }
         finally {
+            for (int i = 0; i < acquired; i++) {
+                layerLocks.unlock(locked[i]);
+            }
             afterFunction(currentPlane);
         }
+
+        movesDone(to - from);
+    }
+
+    // rotates on a thread of the executor, future fails with
+    // InterruptedException if that thread gets interrupted
+    public CompletableFuture<Void> rotateAsync(int side, int layer) {
+        return async(() -> {
+            rotate(side, layer);
+            return null;
+        });
+    }
+
+    public CompletableFuture<String> showAsync() {
+        return async(this::show);
+    }
+
+    private <T> CompletableFuture<T> async(Callable<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(operation.call());
+                }
+                catch (Throwable exception) {
+                    future.completeExceptionally(exception);
+                }
+            });
+        }
+        catch (RuntimeException exception) {
+            future.completeExceptionally(exception);
+        }
+        return future;
     }
 
     public String show() throws InterruptedException {
+        if (optimisticShow)
+            return optimisticShow();
+
         beforeFunction(SHOW_TYPE);
 
         String result = properShow();
@@ -231,4 +643,225 @@ public class Cube {
 
         return result;
     }
+
+    // shows only if the cube lets it in right away, otherwise gives null;
+    // takes its turn like show without optimistic reads
+    public String tryShow() throws InterruptedException {
+        return tryShow(0, TimeUnit.NANOSECONDS);
+    }
+
+    public String tryShow(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!admission.enter(SHOW_TYPE, unit.toNanos(timeout)))
+            return null;
+
+        String result = properShow();
+
+        afterFunction(SHOW_TYPE);
+
+        return result;
+    }
+
+    // tries to read the state without stopping rotations, after a few failed
+    // attempts waits for its turn like usual show
+    private String optimisticShow() throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        if (beforeShowing != null)
+            beforeShowing.run();
+
+        String result = null;
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS && result == null; attempt++) {
+            result = tryReadState();
+        }
+        if (result != null) {
+            if (afterShowing != null)
+                afterShowing.run();
+            return result;
+        }
+
+        beforeFunction(SHOW_TYPE);
+        result = readState();
+        if (afterShowing != null)
+            afterShowing.run();
+        afterFunction(SHOW_TYPE);
+
+        return result;
+    }
+
+    // last snapshot, a new one is taken first if it is older than allowed
+    public CubeSnapshot snapshot() throws InterruptedException {
+        CubeSnapshot current = snapshot;
+        if (current != null && System.nanoTime() - current.getTime() <= maxStaleness)
+            return current;
+        return takeSnapshot(maxStaleness);
+    }
+
+    // called by rotations once they have left the cube; a snapshot due
+    // after given number of moves or because the last one got too old is
+    // published by the executor, so rotations never wait for a show turn
+    private void movesDone(int count) {
+        if (!snapshots)
+            return;
+        boolean due = false;
+        if (snapshotMoves > 0) {
+            long done = moves.addAndGet(count);
+            due = done / snapshotMoves != (done - count) / snapshotMoves;
+        }
+        if (!due && maxStaleness > 0) {
+            CubeSnapshot current = snapshot;
+            due = current == null || System.nanoTime() - current.getTime() > maxStaleness;
+        }
+        if (due && publications.getAndIncrement() == 0)
+            startPublisher();
+    }
+
+    // publishes snapshots until no rotation asks for one, a snapshot taken
+    // after some rotation has asked serves it as well
+    private void startPublisher() {
+        try {
+            executor.execute(() -> {
+                try {
+                    int served;
+                    do {
+                        served = publications.get();
+                        if (!closed)
+                            takeSnapshot(Long.MAX_VALUE);
+                    } while (publications.addAndGet(-served) != 0);
+                }
+                catch (InterruptedException exception) {
+                    publications.set(0);
+                    Thread.currentThread().interrupt();
+                }
+                catch (RuntimeException exception) {
+                    publications.set(0);
+                    throw exception;
+                }
+            });
+        }
+        catch (RuntimeException exception) {
+            publications.set(0);
+        }
+    }
+
+    // takes a snapshot unless some other thread has just taken one
+    // not older than given staleness
+    private CubeSnapshot takeSnapshot(long staleness) throws InterruptedException {
+        snapshotLock.lockInterruptibly();
+        try {
+            CubeSnapshot previous = snapshot;
+            if (previous != null && staleness != Long.MAX_VALUE
+                    && System.nanoTime() - previous.getTime() <= staleness)
+                return previous;
+
+            beforeFunction(SHOW_TYPE);
+            CubeSnapshot taken;
+            try {
+                String[] faces = new String[SIDES_NUMBER];
+                for (int i = 0; i < SIDES_NUMBER; i++) {
+                    if (previous == null || !snapshots || changedFaces[i])
+                        faces[i] = sides[i].toString();
+                    else
+                        faces[i] = previous.faces()[i];
+                    changedFaces[i] = false;
+                }
+                taken = new CubeSnapshot(faces, System.nanoTime());
+                snapshot = taken;
+            }
+            finally {
+                afterFunction(SHOW_TYPE);
+            }
+            return taken;
+        }
+        finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    // writes the same as show() to the channel without building the whole
+    // state in memory, always waits for its turn like usual show
+    public void show(WritableByteChannel channel) throws InterruptedException, IOException {
+        ByteBuffer buffer = streamBuffers.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+
+        beforeFunction(SHOW_TYPE);
+        try {
+            if (beforeShowing != null)
+                beforeShowing.run();
+            for (Side side : sides) {
+                side.writeTo(buffer, channel);
+            }
+            Side.flush(buffer, channel);
+            if (afterShowing != null)
+                afterShowing.run();
+        }
+        finally {
+            buffer.clear();
+            streamBuffers.offer(buffer);
+            afterFunction(SHOW_TYPE);
+        }
+    }
+
+    public void show(OutputStream stream) throws InterruptedException, IOException {
+        show(Channels.newChannel(stream));
+        stream.flush();
+    }
+
+    // writes the same as show() into the array, nothing is allocated
+    public void showInto(byte[] target) throws InterruptedException {
+        checkCapacity(target.length);
+        beforeFunction(SHOW_TYPE);
+        try {
+            if (beforeShowing != null)
+                beforeShowing.run();
+            render(target);
+            if (afterShowing != null)
+                afterShowing.run();
+        }
+        finally {
+            afterFunction(SHOW_TYPE);
+        }
+    }
+
+    public void showInto(char[] target) throws InterruptedException {
+        checkCapacity(target.length);
+        beforeFunction(SHOW_TYPE);
+        try {
+            if (beforeShowing != null)
+                beforeShowing.run();
+            for (int i = 0; i < SIDES_NUMBER; i++) {
+                sides[i].copyTo(target, i * size * size);
+            }
+            if (afterShowing != null)
+                afterShowing.run();
+        }
+        finally {
+            afterFunction(SHOW_TYPE);
+        }
+    }
+
+    // writes from the current position of the buffer on
+    public void showInto(ByteBuffer target) throws InterruptedException {
+        if (target.isReadOnly())
+            throw new ReadOnlyBufferException();
+        checkCapacity(target.remaining());
+        beforeFunction(SHOW_TYPE);
+        try {
+            if (beforeShowing != null)
+                beforeShowing.run();
+            for (Side side : sides) {
+                side.copyTo(target);
+            }
+            if (afterShowing != null)
+                afterShowing.run();
+        }
+        finally {
+            afterFunction(SHOW_TYPE);
+        }
+    }
+
+    private void checkCapacity(int capacity) {
+        if ((long) SIDES_NUMBER * size * size > capacity)
+            throw new IllegalArgumentException("state of the cube doesn't fit in " + capacity + " places");
+    }
 }
@@ -0,0 +1,210 @@
+package concurrentcube;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+// optional settings of a cube, defaults give the same cube as
+// the constructor without options
+public class CubeOptions {
+    private Storage storage = Storage.BYTES;
+    private boolean lazyFaceRotation = true;
+    private int parallelThreshold = 2048;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private SchedulingPolicy schedulingPolicy = SchedulingPolicy.LATENCY;
+    private boolean spinning = true;
+    private int layerStripes = 0;
+    private boolean optimisticShow = false;
+    private boolean combining = false;
+    // null for the default one
+    private Executor executor;
+    private boolean snapshots = false;
+    private int snapshotMoves = 0;
+    private long maxStaleness = 0;
+    private RotationHook beforeRotation;
+    private RotationHook afterRotation;
+    private Runnable beforeShowing;
+    private Runnable afterShowing;
+
+    public CubeOptions storage(Storage storage) {
+        this.storage = storage;
+        return this;
+    }
+
+    // when set, rotating outer layer only changes orientation of the face
+    // instead of moving all of its blocks
+    public CubeOptions lazyFaceRotation(boolean lazyFaceRotation) {
+        this.lazyFaceRotation = lazyFaceRotation;
+        return this;
+    }
+
+    // single rotation of a cube with at least that many layers is split
+    // among threads of the pool
+    public CubeOptions parallelThreshold(int layers) {
+        this.parallelThreshold = layers;
+        return this;
+    }
+
+    public CubeOptions pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    public CubeOptions schedulingPolicy(SchedulingPolicy schedulingPolicy) {
+        this.schedulingPolicy = schedulingPolicy;
+        return this;
+    }
+
+    // when set, waiting threads spin for a while before they park (only
+    // on machines with more than one processor)
+    public CubeOptions spinning(boolean spinning) {
+        this.spinning = spinning;
+        return this;
+    }
+
+    // with positive number of stripes layers are taken by setting their bit
+    // and waiting threads share that many locks, otherwise every layer has
+    // its own fair semaphore
+    public CubeOptions layerStripes(int stripes) {
+        this.layerStripes = stripes;
+        return this;
+    }
+
+    // when set, show first tries to read blocks while rotations go on and
+    // only if some rotation gets in the way waits for its turn, showing
+    // hooks may then run concurrently with rotations
+    public CubeOptions optimisticShow(boolean optimisticShow) {
+        this.optimisticShow = optimisticShow;
+        return this;
+    }
+
+    // when set, rotations of a plane are published and applied in batches
+    // by one thread at a time, turns of a layer within a batch are added up
+    // so that blocks are moved once, between hooks of the first rotation
+    // of the layer in a batch; hooks of the others follow it
+    public CubeOptions combining(boolean combining) {
+        this.combining = combining;
+        return this;
+    }
+
+    // runs asynchronous rotations and shows and publishes snapshots, by
+    // default each of them gets its own virtual thread, or a pooled one on
+    // runtimes older than Java 21
+    public CubeOptions executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    // a snapshot of the cube is published on the executor after every given
+    // number of moves (if positive) and, while rotations go on, whenever the
+    // last one is older than given time (if positive); snapshot() gives
+    // a snapshot not older than given time
+    public CubeOptions snapshots(int everyMoves, long maxStaleness, TimeUnit unit) {
+        this.snapshots = true;
+        this.snapshotMoves = everyMoves;
+        this.maxStaleness = unit.toNanos(maxStaleness);
+        return this;
+    }
+
+    // hooks used by constructors which don't take them, either may be null
+    public CubeOptions rotationHooks(RotationHook beforeRotation, RotationHook afterRotation) {
+        this.beforeRotation = beforeRotation;
+        this.afterRotation = afterRotation;
+        return this;
+    }
+
+    public CubeOptions showingHooks(Runnable beforeShowing, Runnable afterShowing) {
+        this.beforeShowing = beforeShowing;
+        this.afterShowing = afterShowing;
+        return this;
+    }
+
+    Storage getStorage() {
+        return storage;
+    }
+
+    boolean isLazyFaceRotation() {
+        return lazyFaceRotation;
+    }
+
+    int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    ForkJoinPool getPool() {
+        return pool;
+    }
+
+    SchedulingPolicy getSchedulingPolicy() {
+        return schedulingPolicy;
+    }
+
+    boolean isSpinning() {
+        return spinning;
+    }
+
+    int getLayerStripes() {
+        return layerStripes;
+    }
+
+    boolean isOptimisticShow() {
+        return optimisticShow;
+    }
+
+    boolean isCombining() {
+        return combining;
+    }
+
+    Executor getExecutor() {
+        return executor != null ? executor : DefaultExecutor.EXECUTOR;
+    }
+
+    // virtual thread per task where the runtime has them (Java 21 on),
+    // otherwise daemon threads of a cached pool; looked up at run time so
+    // that the code still builds for Java 17, created on first use
+    private static final class DefaultExecutor {
+        static final Executor EXECUTOR = create();
+
+        private static Executor create() {
+            try {
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (ReflectiveOperationException exception) {
+                return Executors.newCachedThreadPool(task -> {
+                    Thread thread = new Thread(task);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+    }
+
+    boolean isSnapshots() {
+        return snapshots;
+    }
+
+    int getSnapshotMoves() {
+        return snapshotMoves;
+    }
+
+    long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    RotationHook getBeforeRotation() {
+        return beforeRotation;
+    }
+
+    RotationHook getAfterRotation() {
+        return afterRotation;
+    }
+
+    Runnable getBeforeShowing() {
+        return beforeShowing;
+    }
+
+    Runnable getAfterShowing() {
+        return afterShowing;
+    }
+}
@@ -0,0 +1,41 @@
+package concurrentcube;
+
+// immutable state of a cube at some moment, snapshots taken one after
+// another share faces which didn't change in between
+public final class CubeSnapshot {
+    private final String[] faces;
+    private final long time;
+    private String state;
+
+    CubeSnapshot(String[] faces, long time) {
+        this.faces = faces;
+        this.time = time;
+    }
+
+    // same as show() of the cube at the moment the snapshot was taken
+    public String show() {
+        String result = state;
+        if (result == null) {
+            StringBuilder sb = new StringBuilder();
+            for (String face : faces) {
+                sb.append(face);
+            }
+            result = sb.toString();
+            state = result;
+        }
+        return result;
+    }
+
+    public String getFace(int side) {
+        return faces[side];
+    }
+
+    // System.nanoTime() when the snapshot was taken
+    public long getTime() {
+        return time;
+    }
+
+    String[] faces() {
+        return faces;
+    }
+}
@@ -6,10 +6,29 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -359,6 +378,1068 @@ public class CubeTest {
         }
     }
 
+    @ParameterizedTest
+    @DisplayName("Cubes with different options give same states as default one.")
+    @CsvSource({"1,100", "4,1000", "21,1000", "45,1000", "131,200", "260,50"})
+    void optionsTest(int size, int rotations) {
+        Cube cube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {}
+        );
+        CubeOptions[] options = {
+                new CubeOptions().storage(Storage.PACKED),
+                new CubeOptions().storage(Storage.OFF_HEAP),
+                new CubeOptions().lazyFaceRotation(false),
+                new CubeOptions().lazyFaceRotation(false).parallelThreshold(1),
+                new CubeOptions().storage(Storage.PACKED).parallelThreshold(1),
+                new CubeOptions().combining(true)
+        };
+        Cube[] others = new Cube[options.length];
+        for (int i = 0; i < options.length; i++) {
+            others[i] = new Cube(size,
+                    (x, y) -> {},
+                    (x, y) -> {},
+                    () -> {},
+                    () -> {},
+                    options[i]
+            );
+        }
+
+        try {
+            for (int i = 0; i < rotations; i++) {
+                int side = random(SIDES), layer = random(size);
+                cube.rotate(side, layer);
+                for (Cube other : others) {
+                    other.rotate(side, layer);
+                }
+            }
+            for (Cube other : others) {
+                assertEquals(cube.show(), other.show());
+                other.close();
+            }
+        }
+        catch (InterruptedException ignored) {
+
+        }
+    }
+
+    @ParameterizedTest
+    @DisplayName("Packed blocks of layers rotated at once by different threads aren't lost.")
+    @CsvSource({"21,8,4000", "42,8,4000"})
+    void concurrentPackedTest(int size, int threadsNumber, int rotations) throws InterruptedException {
+        Cube cube = new Cube(size, new CubeOptions().storage(Storage.PACKED));
+        AtomicInteger errors = new AtomicInteger(0);
+        Thread[] threads = new Thread[threadsNumber];
+        for (int t = 0; t < threadsNumber; t++) {
+            // every thread turns its own layer of plane 1, which is a column
+            // of packed words on the sides around it
+            int layer = 1 + t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < rotations; i++) {
+                        cube.rotate(1, layer);
+                    }
+                }
+                catch (InterruptedException exception) {
+                    errors.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, errors.intValue());
+        assertEquals(new Cube(size).show(), cube.show());
+    }
+
+    @Test
+    @DisplayName("Mapped cube keeps its blocks in the file, closed cube can't be shown.")
+    void mappedStorageTest() throws IOException, InterruptedException {
+        final int size = 7, rotations = 200;
+        Path file = Files.createTempFile("cube", ".bin");
+        try {
+            // without lazy face rotation blocks are stored as they are shown
+            Cube cube = new Cube(size, new CubeOptions()
+                    .storage(Storage.mapped(file))
+                    .lazyFaceRotation(false));
+            Cube reference = new Cube(size);
+            for (int i = 0; i < rotations; i++) {
+                int side = random(SIDES), layer = random(size);
+                cube.rotate(side, layer);
+                reference.rotate(side, layer);
+            }
+            String state = cube.show();
+            assertEquals(reference.show(), state);
+            cube.close();
+
+            byte[] stored = Files.readAllBytes(file);
+            assertEquals(state.length(), stored.length);
+            for (int k = 0; k < stored.length; k++) {
+                assertEquals(state.charAt(k) - '0', stored[k]);
+            }
+            assertThrows(IllegalStateException.class, cube::show);
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    @DisplayName("Blocks of one colour are shared, sides give blocks seen at given place.")
+    @SuppressWarnings("deprecation")
+    void blockTest() {
+        final int size = 5;
+        for (int colour = 0; colour < SIDES; colour++) {
+            assertSame(Block.of(colour), Block.of(colour));
+            assertEquals(colour, Block.of(colour).getColour());
+            assertEquals(String.valueOf(colour), Block.of(colour).toString());
+            assertEquals(colour, new Block(colour).getColour());
+        }
+
+        Storage[] storages = {Storage.BYTES, Storage.PACKED, Storage.OFF_HEAP};
+        for (Storage storage : storages) {
+            Side side = storage.newSide(size, 4);
+            side.store(0, 1, 2);
+            assertSame(Block.of(2), side.getBlock(0, 1));
+            assertSame(Block.of(4), side.getBlock(1, 0));
+            // lazily turned face gives the block from its new place
+            side.rotate90Degrees(true);
+            assertSame(Block.of(2), side.getBlock(1, size - 1));
+            side.rotateBlocks90Degrees(false);
+            assertSame(Block.of(2), side.getBlock(0, 1));
+            side.rotate180Degrees();
+            assertSame(Block.of(2), side.getBlock(size - 1, size - 2));
+            String shown = side.toString();
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    assertEquals(shown.charAt(i * size + j) - '0', side.getBlock(i, j).getColour());
+                }
+            }
+            side.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Hooks given in options are called, cube without hooks works the same.")
+    void optionHooksTest() {
+        final int size = 5, rotations = 100;
+        var counter = new Object() {
+            final AtomicInteger rotates = new AtomicInteger(0);
+            final AtomicInteger shows = new AtomicInteger(0);
+            final AtomicInteger errors = new AtomicInteger(0);
+        };
+        Cube cube = new Cube(size, new CubeOptions()
+                .rotationHooks(
+                        (side, layer) -> counter.rotates.incrementAndGet(),
+                        (side, layer) -> {
+                            if (side < 0 || side >= SIDES || layer < 0 || layer >= size)
+                                counter.errors.incrementAndGet();
+                        })
+                .showingHooks(counter.shows::incrementAndGet, null));
+        Cube withoutHooks = new Cube(size);
+
+        try {
+            for (int i = 0; i < rotations; i++) {
+                int side = random(SIDES), layer = random(size);
+                cube.rotate(side, layer);
+                withoutHooks.rotate(side, layer);
+            }
+            assertEquals(withoutHooks.show(), cube.show());
+        }
+        catch (InterruptedException ignored) {
+
+        }
+
+        assertEquals(rotations, counter.rotates.intValue());
+        assertEquals(1, counter.shows.intValue());
+        assertEquals(0, counter.errors.intValue());
+    }
+
+    @Test
+    @DisplayName("Policy choosing a type nobody waits for or changing the counts doesn't stop the cube.")
+    void misbehavingPolicyTest() throws InterruptedException {
+        assertNotStuck(new SchedulingPolicy() {
+            @Override
+            public boolean mayJoin(int joined, long waitingSince) {
+                return false;
+            }
+
+            @Override
+            public int next(int previous, int[] waiting) {
+                return 0;
+            }
+        });
+        assertNotStuck(new SchedulingPolicy() {
+            @Override
+            public boolean mayJoin(int joined, long waitingSince) {
+                return false;
+            }
+
+            @Override
+            public int next(int previous, int[] waiting) {
+                int next = SchedulingPolicy.roundRobin(previous, waiting);
+                Arrays.fill(waiting, 0);
+                return next;
+            }
+        });
+    }
+
+    // runs rotations of planes 1 and 2 and shows with given policy, all of
+    // them have to finish
+    private void assertNotStuck(SchedulingPolicy policy) throws InterruptedException {
+        final int threadsNumber = 8, operations = 2000;
+        Cube cube = new Cube(3, new CubeOptions().schedulingPolicy(policy));
+        AtomicInteger done = new AtomicInteger(0);
+        Thread[] threads = new Thread[threadsNumber];
+        for (int t = 0; t < threadsNumber; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < operations; i++) {
+                        // plane 0 is left out, so returning it is always wrong
+                        if (random(4) == 0)
+                            cube.show();
+                        else
+                            cube.rotate(random(1, 4), random(3));
+                        done.incrementAndGet();
+                    }
+                }
+                catch (InterruptedException ignored) {
+
+                }
+            });
+            // stuck threads mustn't keep the tests from finishing
+            threads[t].setDaemon(true);
+            threads[t].start();
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        assertEquals(threadsNumber * operations, done.intValue());
+    }
+
+    @Test
+    @DisplayName("Interrupted thread waiting for its turn doesn't keep processor busy.")
+    void interruptedWaitTest() throws InterruptedException {
+        CountDownLatch showing = new CountDownLatch(1);
+        Semaphore releaseShow = new Semaphore(0);
+        Cube cube = new Cube(3, new CubeOptions().showingHooks(() -> {
+            showing.countDown();
+            releaseShow.acquireUninterruptibly();
+        }, null));
+        Thread shower = new Thread(() -> {
+            try {
+                cube.show();
+            }
+            catch (InterruptedException ignored) {
+
+            }
+        });
+        shower.start();
+        showing.await();
+
+        AtomicInteger interrupted = new AtomicInteger(0);
+        Thread rotator = new Thread(() -> {
+            try {
+                cube.rotate(0, 0);
+            }
+            catch (InterruptedException exception) {
+                interrupted.incrementAndGet();
+            }
+        });
+        rotator.start();
+        assertIdleWhenInterrupted(rotator);
+        releaseShow.release();
+        shower.join();
+        rotator.join();
+        assertEquals(1, interrupted.intValue());
+    }
+
+    @Test
+    @DisplayName("Interrupted thread waiting for the combiner doesn't keep processor busy.")
+    void interruptedCombiningTest() throws InterruptedException {
+        CountDownLatch rotating = new CountDownLatch(1);
+        Semaphore releaseRotation = new Semaphore(0);
+        Semaphore blocking = new Semaphore(1);
+        Cube cube = new Cube(3, new CubeOptions().combining(true).rotationHooks((side, layer) -> {
+            if (blocking.tryAcquire()) {
+                rotating.countDown();
+                releaseRotation.acquireUninterruptibly();
+            }
+        }, null));
+        Thread combiner = new Thread(() -> {
+            try {
+                cube.rotate(0, 0);
+            }
+            catch (InterruptedException ignored) {
+
+            }
+        });
+        combiner.start();
+        rotating.await();
+
+        AtomicInteger interrupted = new AtomicInteger(0);
+        Thread requester = new Thread(() -> {
+            try {
+                cube.rotate(0, 1);
+            }
+            catch (InterruptedException exception) {
+                interrupted.incrementAndGet();
+            }
+        });
+        requester.start();
+        assertIdleWhenInterrupted(requester);
+        releaseRotation.release();
+        combiner.join();
+        requester.join();
+        assertEquals(1, interrupted.intValue());
+
+        Cube other = new Cube(3);
+        other.rotate(0, 0);
+        other.rotate(0, 1);
+        assertEquals(other.show(), cube.show());
+    }
+
+    // interrupts thread once it parks and checks it stays parked; getId
+    // is deprecated since Java 19, but threadId isn't there on Java 17
+    @SuppressWarnings("deprecation")
+    private static void assertIdleWhenInterrupted(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        thread.interrupt();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadCpuTimeSupported())
+            return;
+        long before = threads.getThreadCpuTime(thread.getId());
+        Thread.sleep(200);
+        long used = threads.getThreadCpuTime(thread.getId()) - before;
+        assertTrue(used < TimeUnit.MILLISECONDS.toNanos(50), "used " + used + " ns");
+    }
+
+    @ParameterizedTest
+    @DisplayName("With throughput policy, striped layer locks or combining moves of different planes " +
+            "or of the same layer still don't happen concurrently.")
+    @CsvSource({"3,20,2000,true,0,false", "10,20,1000,true,0,false", "10,20,1000,false,3,false",
+            "100,10,1000,true,4,false", "3,20,2000,false,0,true", "10,20,1000,true,3,true"})
+    void concurrentOptionsTest(int size, int threadsNumber, int rotations, boolean throughput, int stripes,
+                               boolean combining) {
+        var checker = new Object() {
+            final AtomicInteger[] planes = new AtomicInteger[SIDES / 2];
+            final AtomicInteger[] layers = new AtomicInteger[size];
+            final AtomicInteger inShow = new AtomicInteger(0);
+            final AtomicInteger errors = new AtomicInteger(0);
+        };
+        for (int i = 0; i < SIDES / 2; i++) {
+            checker.planes[i] = new AtomicInteger(0);
+        }
+        for (int i = 0; i < size; i++) {
+            checker.layers[i] = new AtomicInteger(0);
+        }
+
+        Cube cube = new Cube(size, new CubeOptions()
+                .schedulingPolicy(throughput ? SchedulingPolicy.THROUGHPUT : SchedulingPolicy.LATENCY)
+                .layerStripes(stripes)
+                .combining(combining)
+                .rotationHooks(
+                        (side, layer) -> {
+                            int plane = side > 2 ? oppositeSide(side) : side;
+                            int myLayer = side > 2 ? size - layer - 1 : layer;
+                            checker.planes[plane].incrementAndGet();
+                            if (checker.layers[myLayer].incrementAndGet() != 1)
+                                checker.errors.incrementAndGet();
+                            for (int i = 0; i < SIDES / 2; i++) {
+                                if (i != plane && checker.planes[i].intValue() != 0)
+                                    checker.errors.incrementAndGet();
+                            }
+                            if (checker.inShow.intValue() != 0)
+                                checker.errors.incrementAndGet();
+                        },
+                        (side, layer) -> {
+                            int plane = side > 2 ? oppositeSide(side) : side;
+                            int myLayer = side > 2 ? size - layer - 1 : layer;
+                            checker.layers[myLayer].decrementAndGet();
+                            checker.planes[plane].decrementAndGet();
+                        })
+                .showingHooks(checker.inShow::incrementAndGet, checker.inShow::decrementAndGet));
+
+        class Worker implements Runnable {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < rotations; i++) {
+                    try {
+                        cube.rotate(random(SIDES), random(size));
+                        if (i % 100 == 0)
+                            cube.show();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        Thread[] threads = new Thread[threadsNumber];
+        for (int i = 0; i < threadsNumber; i++) {
+            threads[i] = new Thread(new Worker());
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                System.out.println("Failed to join.");
+            }
+        }
+
+        assertEquals(0, checker.errors.intValue());
+        try {
+            assertTrue(properNumberOfColours(cube));
+        }
+        catch (InterruptedException ignored) {
+
+        }
+    }
+
+    @ParameterizedTest
+    @DisplayName("Optimistic show returns consistent states while rotations go on.")
+    @CsvSource({"3,4,2000", "20,4,500"})
+    void optimisticShowTest(int size, int threadsNumber, int rotations) {
+        final int shows = 200;
+        var checker = new Object() {
+            final AtomicInteger errors = new AtomicInteger(0);
+        };
+        Cube cube = new Cube(size, new CubeOptions().optimisticShow(true));
+
+        class Worker implements Runnable {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < rotations; i++) {
+                    try {
+                        cube.rotate(random(SIDES), random(size));
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        Thread[] threads = new Thread[threadsNumber];
+        for (int i = 0; i < threadsNumber; i++) {
+            threads[i] = new Thread(new Worker());
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        try {
+            for (int i = 0; i < shows; i++) {
+                if (!properNumberOfColours(cube))
+                    checker.errors.incrementAndGet();
+            }
+        }
+        catch (InterruptedException ignored) {
+
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                System.out.println("Failed to join.");
+            }
+        }
+
+        assertEquals(0, checker.errors.intValue());
+    }
+
+    @Test
+    @DisplayName("Snapshots follow rotations and share faces which didn't change.")
+    void snapshotTest() {
+        final int size = 6, rotations = 200, every = 5;
+        Cube fresh = new Cube(size, new CubeOptions().snapshots(every, 0, TimeUnit.NANOSECONDS));
+        // snapshots are published right away by the rotating thread
+        Cube stale = new Cube(size, new CubeOptions()
+                .snapshots(every, 1, TimeUnit.HOURS)
+                .executor(Runnable::run));
+
+        try {
+            for (int i = 1; i <= rotations; i++) {
+                int side = random(SIDES), layer = random(size);
+                fresh.rotate(side, layer);
+                stale.rotate(side, layer);
+                assertEquals(fresh.show(), fresh.snapshot().show());
+                if (i % every == 0)
+                    assertEquals(stale.show(), stale.snapshot().show());
+            }
+
+            CubeSnapshot before = fresh.snapshot();
+            fresh.rotate(0, 1);
+            CubeSnapshot after = fresh.snapshot();
+            assertSame(before.getFace(0), after.getFace(0));
+            assertSame(before.getFace(5), after.getFace(5));
+            assertNotEquals(before.show(), after.show());
+        }
+        catch (InterruptedException ignored) {
+
+        }
+    }
+
+    @Test
+    @DisplayName("Rotations publish snapshots on the executor after some moves and when the last one is too old.")
+    void snapshotPublicationTest() throws InterruptedException {
+        final int size = 4, rotations = 20, every = 5;
+        AtomicInteger published = new AtomicInteger(0);
+        Executor counting = task -> {
+            published.incrementAndGet();
+            task.run();
+        };
+        // first rotation finds no snapshot, then one is due every five moves
+        Cube counted = new Cube(size, new CubeOptions()
+                .snapshots(every, 1, TimeUnit.HOURS)
+                .executor(counting));
+        for (int i = 0; i < rotations; i++) {
+            counted.rotate(random(SIDES), random(size));
+        }
+        assertEquals(1 + rotations / every, published.intValue());
+        assertEquals(counted.show(), counted.snapshot().show());
+
+        published.set(0);
+        Cube timed = new Cube(size, new CubeOptions()
+                .snapshots(0, 1, TimeUnit.MILLISECONDS)
+                .executor(counting));
+        for (int i = 0; i < 3; i++) {
+            timed.rotate(random(SIDES), random(size));
+            Thread.sleep(5);
+        }
+        assertEquals(3, published.intValue());
+
+        Cube background = new Cube(size, new CubeOptions().snapshots(1, 1, TimeUnit.HOURS));
+        background.rotate(0, 0);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!background.show().equals(background.snapshot().show()) && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(background.show(), background.snapshot().show());
+    }
+
+    @Test
+    @DisplayName("Rotation publishing a snapshot itself doesn't fail when interrupted while waiting for its turn.")
+    void interruptedPublicationTest() throws InterruptedException {
+        CountDownLatch rotating = new CountDownLatch(1);
+        Semaphore releaseRotation = new Semaphore(0);
+        var state = new Object() {
+            volatile Thread other;
+            volatile boolean rotated = false;
+            volatile boolean failed = false;
+            volatile boolean interrupted = false;
+        };
+        // rotation of plane 1 is queued while plane 0 rotates and then
+        // blocks, so the snapshot published after the rotation of plane 0
+        // has to wait for it
+        Cube cube = new Cube(3, new CubeOptions()
+                .snapshots(1, 1, TimeUnit.HOURS)
+                .executor(Runnable::run)
+                .rotationHooks((side, layer) -> {
+                    if (side == 0) {
+                        state.other.start();
+                        while (state.other.getState() != Thread.State.WAITING) {
+                            Thread.yield();
+                        }
+                    }
+                    else {
+                        rotating.countDown();
+                        releaseRotation.acquireUninterruptibly();
+                    }
+                }, (side, layer) -> {
+                    if (side == 0)
+                        state.rotated = true;
+                }));
+        state.other = new Thread(() -> {
+            try {
+                cube.rotate(1, 0);
+            }
+            catch (InterruptedException ignored) {
+
+            }
+        });
+        Thread publisher = new Thread(() -> {
+            try {
+                cube.rotate(0, 0);
+            }
+            catch (InterruptedException exception) {
+                state.failed = true;
+            }
+            state.interrupted = Thread.currentThread().isInterrupted();
+        });
+        publisher.start();
+        rotating.await();
+        while (!state.rotated || publisher.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        publisher.interrupt();
+        releaseRotation.release();
+        publisher.join();
+        state.other.join();
+
+        assertFalse(state.failed);
+        assertTrue(state.interrupted);
+        assertEquals(cube.show(), cube.snapshot().show());
+    }
+
+    @Test
+    @DisplayName("Show without rotations in between gives cached state, hooks are still called.")
+    void cachedShowTest() {
+        final int size = 4;
+        var counter = new Object() {
+            final AtomicInteger shows = new AtomicInteger(0);
+        };
+        Cube cube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                counter.shows::incrementAndGet,
+                () -> {}
+        );
+
+        try {
+            String first = cube.show();
+            assertSame(first, cube.show());
+            cube.rotate(2, 1);
+            String rotated = cube.show();
+            assertNotEquals(first, rotated);
+            assertSame(rotated, cube.show());
+            cube.rotate(4, 2);
+            assertEquals(first, cube.show());
+            assertEquals(5, counter.shows.intValue());
+        }
+        catch (InterruptedException ignored) {
+
+        }
+    }
+
+    @ParameterizedTest
+    @DisplayName("Show written to a stream or into a buffer is the same as returned one.")
+    @CsvSource({"1,10", "4,100", "300,100"})
+    void streamedShowTest(int size, int rotations) {
+        Cube cube = new Cube(size);
+        try {
+            for (int i = 0; i < rotations; i++) {
+                cube.rotate(random(SIDES), random(size));
+            }
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            cube.show(stream);
+            String state = cube.show();
+            assertEquals(state, stream.toString(StandardCharsets.US_ASCII));
+
+            byte[] bytes = new byte[state.length()];
+            char[] chars = new char[state.length()];
+            ByteBuffer buffer = ByteBuffer.allocate(state.length());
+            cube.showInto(bytes);
+            cube.showInto(chars);
+            cube.showInto(buffer);
+            assertEquals(state, new String(bytes, StandardCharsets.US_ASCII));
+            assertEquals(state, new String(chars));
+            assertArrayEquals(bytes, buffer.array());
+            assertThrows(IllegalArgumentException.class, () -> cube.showInto(new byte[state.length() - 1]));
+            assertThrows(ReadOnlyBufferException.class, () -> cube.showInto(buffer.clear().asReadOnlyBuffer()));
+            RuntimeException failure = new RuntimeException();
+            Cube failing = new Cube(size, new CubeOptions().showingHooks(() -> {
+                throw failure;
+            }, null));
+            assertSame(failure, assertThrows(RuntimeException.class, () -> failing.showInto(bytes)));
+            assertTimeoutPreemptively(Duration.ofSeconds(1), () -> failing.rotate(0, 0));
+        }
+        catch (InterruptedException | IOException ignored) {
+
+        }
+    }
+
+    @ParameterizedTest
+    @DisplayName("Batch of rotations gives the same state and hooks as rotating one by one.")
+    @CsvSource({"1,10", "5,1000", "64,500"})
+    void batchRotationTest(int size, int rotations) {
+        StringBuilder sequentialHooks = new StringBuilder(), batchHooks = new StringBuilder();
+        Cube sequential = new Cube(size,
+                (side, layer) -> sequentialHooks.append(side).append(layer).append(','),
+                (x, y) -> {},
+                () -> {},
+                () -> {}
+        );
+        Cube batch = new Cube(size,
+                (side, layer) -> batchHooks.append(side).append(layer).append(','),
+                (x, y) -> {},
+                () -> {},
+                () -> {}
+        );
+
+        // runs of moves of the same plane are long enough to be grouped
+        int[] sides = new int[rotations];
+        int[] layers = new int[rotations];
+        for (int i = 0; i < rotations; i++) {
+            sides[i] = i > 0 && random(3) > 0 ? (random(2) == 0 ? sides[i - 1] : oppositeSide(sides[i - 1])) : random(SIDES);
+            layers[i] = random(size);
+        }
+
+        try {
+            for (int i = 0; i < rotations; i++) {
+                sequential.rotate(sides[i], layers[i]);
+            }
+            batch.rotateAll(sides, layers);
+            assertEquals(sequential.show(), batch.show());
+            assertEquals(sequentialHooks.toString(), batchHooks.toString());
+            assertThrows(IllegalArgumentException.class, () -> batch.rotateAll(new int[1], new int[2]));
+        }
+        catch (InterruptedException ignored) {
+
+        }
+    }
+
+    @ParameterizedTest
+    @DisplayName("Folded sequence of rotations gives the same state as rotating one by one.")
+    @CsvSource({"1,100", "2,1000", "5,1000", "64,500", "131,200"})
+    void optimizedRotationTest(int size, int rotations) {
+        CubeOptions[] options = {
+                new CubeOptions(),
+                new CubeOptions().lazyFaceRotation(false),
+                new CubeOptions().storage(Storage.PACKED).lazyFaceRotation(false),
+                new CubeOptions().lazyFaceRotation(false).parallelThreshold(1)
+        };
+
+        // few layers and repeated rotations, so that plenty of them fold
+        int[] sides = new int[rotations];
+        int[] layers = new int[rotations];
+        for (int i = 0; i < rotations; i++) {
+            boolean repeat = i > 0 && random(2) == 0;
+            sides[i] = repeat ? sides[i - 1] : random(SIDES);
+            layers[i] = repeat ? layers[i - 1] : random(Math.min(size, 3));
+            if (random(4) == 0) {
+                layers[i] = size - layers[i] - 1;
+                sides[i] = oppositeSide(sides[i]);
+            }
+        }
+
+        try {
+            for (CubeOptions option : options) {
+                Cube sequential = new Cube(size, option);
+                Cube optimized = new Cube(size, option);
+                for (int i = 0; i < rotations; i++) {
+                    sequential.rotate(sides[i], layers[i]);
+                }
+                optimized.rotateOptimized(sides, layers);
+                assertEquals(sequential.show(), optimized.show());
+            }
+        }
+        catch (InterruptedException ignored) {
+
+        }
+    }
+
+    @Test
+    @DisplayName("Rotations cancelling each other are skipped, two quarter turns are one half turn.")
+    void foldingTest() throws InterruptedException {
+        final int size = 4;
+        AtomicInteger rotations = new AtomicInteger(0), inRotation = new AtomicInteger(0);
+        AtomicInteger errors = new AtomicInteger(0);
+        Cube cube = new Cube(size,
+                (x, y) -> {
+                    if (inRotation.incrementAndGet() != 1)
+                        errors.incrementAndGet();
+                },
+                (x, y) -> {
+                    inRotation.decrementAndGet();
+                    rotations.incrementAndGet();
+                },
+                () -> {},
+                () -> {}
+        );
+        String solved = cube.show();
+
+        cube.rotateOptimized(new int[] {1, 1, 1, 1}, new int[] {2, 2, 2, 2});
+        cube.rotateOptimized(new int[] {0, 5}, new int[] {1, size - 2});
+        cube.rotateOptimized(new int[] {2, 1, 3, 4}, new int[] {0, 1, size - 2, size - 1});
+        assertEquals(solved, cube.show());
+        assertEquals(0, rotations.intValue());
+
+        Cube other = new Cube(size);
+        other.rotate(3, 1);
+        other.rotate(3, 1);
+        cube.rotateOptimized(new int[] {3, 3}, new int[] {1, 1});
+        assertEquals(other.show(), cube.show());
+        assertEquals(1, rotations.intValue());
+        assertEquals(0, errors.intValue());
+
+        assertThrows(IllegalArgumentException.class, () -> cube.rotateOptimized(new int[] {6}, new int[] {0}));
+        assertThrows(IllegalArgumentException.class, () -> cube.rotateOptimized(new int[] {0}, new int[] {size}));
+    }
+
+    @ParameterizedTest
+    @DisplayName("Combined rotations of one plane give the same state as rotating one by one.")
+    @CsvSource({"1,4,1000", "3,16,1000", "10,8,2000"})
+    void combiningTest(int size, int threadsNumber, int rotations) throws InterruptedException {
+        AtomicInteger before = new AtomicInteger(0), after = new AtomicInteger(0);
+        Cube cube = new Cube(size, new CubeOptions()
+                .combining(true)
+                .rotationHooks((x, y) -> before.incrementAndGet(), (x, y) -> after.incrementAndGet()));
+        Cube sequential = new Cube(size);
+
+        // rotations of one plane commute, so any order gives the same state;
+        // few layers are rotated to make threads contend
+        int[][] sides = new int[threadsNumber][rotations];
+        int[][] layers = new int[threadsNumber][rotations];
+        for (int t = 0; t < threadsNumber; t++) {
+            for (int i = 0; i < rotations; i++) {
+                sides[t][i] = random(2) == 0 ? 1 : 3;
+                layers[t][i] = random(Math.min(size, 2));
+                sequential.rotate(sides[t][i], layers[t][i]);
+            }
+        }
+
+        // shows taken meanwhile must have every colour on as many blocks as
+        // at the beginning, which isn't so in the middle of a rotation
+        AtomicInteger errors = new AtomicInteger(0);
+        Thread[] threads = new Thread[threadsNumber];
+        for (int t = 0; t < threadsNumber; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < rotations; i++) {
+                        cube.rotate(sides[thread][i], layers[thread][i]);
+                        if (i % 100 == 0) {
+                            int[] colours = new int[SIDES];
+                            cube.show().chars().forEach(c -> colours[c - '0']++);
+                            for (int colour : colours) {
+                                if (colour != size * size)
+                                    errors.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+                catch (InterruptedException | RuntimeException exception) {
+                    errors.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.intValue());
+        assertEquals(sequential.show(), cube.show());
+        assertEquals(threadsNumber * rotations, before.intValue());
+        assertEquals(threadsNumber * rotations, after.intValue());
+    }
+
+    @Test
+    @DisplayName("Asynchronous rotations and shows give the same results as blocking ones.")
+    void asyncTest() throws InterruptedException {
+        final int size = 5, rotations = 20000;
+        Cube cube = new Cube(size);
+        Cube sequential = new Cube(size);
+
+        // rotations of one plane commute, so they may finish in any order
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (int i = 0; i < rotations; i++) {
+            int side = random(2) == 0 ? 0 : 5, layer = random(size);
+            sequential.rotate(side, layer);
+            futures.add(cube.rotateAsync(side, layer));
+            if (i % 1000 == 0)
+                futures.add(cube.showAsync());
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        assertEquals(sequential.show(), cube.showAsync().join());
+
+        AtomicInteger tasks = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Cube other = new Cube(size, new CubeOptions().executor(task -> {
+            tasks.incrementAndGet();
+            executor.execute(task);
+        }));
+        other.rotateAsync(0, 0).join();
+        other.rotate(0, 0);
+        other.rotate(0, 0);
+        other.rotate(0, 0);
+        assertEquals(sequential.show().length(), other.showAsync().join().length());
+        assertEquals(new Cube(size).show(), other.show());
+        assertEquals(2, tasks.intValue());
+        executor.shutdown();
+    }
+
+    @ParameterizedTest
+    @DisplayName("Try variants give up when the cube or the layer is taken and leave no trace.")
+    @CsvSource({"0", "4"})
+    void tryTest(int stripes) throws InterruptedException {
+        final int size = 3;
+        CountDownLatch showing = new CountDownLatch(1), rotating = new CountDownLatch(1);
+        CountDownLatch releaseShow = new CountDownLatch(1), releaseRotation = new CountDownLatch(1);
+        Semaphore blocking = new Semaphore(0);
+        Cube cube = new Cube(size, new CubeOptions()
+                .layerStripes(stripes)
+                .rotationHooks((side, layer) -> {
+                    if (blocking.tryAcquire()) {
+                        rotating.countDown();
+                        awaitUninterruptibly(releaseRotation);
+                    }
+                }, null)
+                .showingHooks(() -> {
+                    if (blocking.tryAcquire()) {
+                        showing.countDown();
+                        awaitUninterruptibly(releaseShow);
+                    }
+                }, null));
+        Cube other = new Cube(size);
+
+        assertTrue(cube.tryRotate(1, 1));
+        other.rotate(1, 1);
+        assertEquals(other.show(), cube.tryShow());
+
+        // show in progress, rotations can't get in but another show can
+        blocking.release();
+        Thread shower = new Thread(() -> {
+            try {
+                cube.show();
+            }
+            catch (InterruptedException ignored) {
+
+            }
+        });
+        shower.start();
+        showing.await();
+        assertFalse(cube.tryRotate(0, 0));
+        assertFalse(cube.tryRotate(2, 1, 20, TimeUnit.MILLISECONDS));
+        assertEquals(other.show(), cube.tryShow());
+        releaseShow.countDown();
+        shower.join();
+        assertTrue(cube.tryRotate(2, 1, 1, TimeUnit.SECONDS));
+        other.rotate(2, 1);
+
+        // rotation of a layer in progress, other layers of the plane are free
+        blocking.release();
+        Thread rotator = new Thread(() -> {
+            try {
+                cube.rotate(0, 0);
+            }
+            catch (InterruptedException ignored) {
+
+            }
+        });
+        rotator.start();
+        rotating.await();
+        assertFalse(cube.tryRotate(0, 0));
+        assertFalse(cube.tryRotate(5, size - 1, 20, TimeUnit.MILLISECONDS));
+        assertNull(cube.tryShow(20, TimeUnit.MILLISECONDS));
+        assertTrue(cube.tryRotate(5, 0));
+        other.rotate(5, 0);
+        releaseRotation.countDown();
+        rotator.join();
+        other.rotate(0, 0);
+        assertEquals(other.show(), cube.tryShow(1, TimeUnit.SECONDS));
+
+        Thread.currentThread().interrupt();
+        assertThrows(InterruptedException.class, () -> cube.tryRotate(0, 0));
+    }
+
+    @Test
+    @DisplayName("Waiters giving up don't let rotations of different planes overlap.")
+    void timedOutWaitersTest() throws InterruptedException {
+        final int size = 3, threadsNumber = 12, operations = 3000;
+        AtomicInteger[] planes = new AtomicInteger[SIDES / 2];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = new AtomicInteger(0);
+        }
+        AtomicInteger errors = new AtomicInteger(0);
+        Cube cube = new Cube(size, new CubeOptions().rotationHooks(
+                (side, layer) -> {
+                    int plane = side > 2 ? oppositeSide(side) : side;
+                    planes[plane].incrementAndGet();
+                    for (int i = 0; i < planes.length; i++) {
+                        if (i != plane && planes[i].intValue() != 0)
+                            errors.incrementAndGet();
+                    }
+                },
+                (side, layer) -> planes[side > 2 ? oppositeSide(side) : side].decrementAndGet()));
+
+        Thread[] threads = new Thread[threadsNumber];
+        for (int t = 0; t < threadsNumber; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < operations; i++) {
+                        switch (random(3)) {
+                            case 0 -> cube.rotate(random(SIDES), random(size));
+                            case 1 -> cube.tryRotate(random(SIDES), random(size), random(1, 50), TimeUnit.MICROSECONDS);
+                            default -> cube.tryShow(random(1, 50), TimeUnit.MICROSECONDS);
+                        }
+                    }
+                }
+                catch (InterruptedException | RuntimeException exception) {
+                    errors.incrementAndGet();
+                }
+            });
+            threads[t].setDaemon(true);
+            threads[t].start();
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            assertFalse(thread.isAlive());
+        }
+        assertEquals(0, errors.intValue());
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            }
+            catch (InterruptedException ignored) {
+
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Concurrent batches with overlapping layers don't deadlock.")
+    void concurrentBatchTest() throws InterruptedException {
+        final int size = 6, threadsNumber = 8, rotations = 2000;
+        AtomicInteger done = new AtomicInteger(0);
+        Cube cube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> done.incrementAndGet(),
+                () -> {},
+                () -> {}
+        );
+
+        Thread[] threads = new Thread[threadsNumber];
+        for (int t = 0; t < threadsNumber; t++) {
+            int[] sides = new int[rotations];
+            int[] layers = new int[rotations];
+            for (int i = 0; i < rotations; i++) {
+                sides[i] = random(SIDES);
+                layers[i] = random(size);
+            }
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < rotations; i += 50) {
+                        cube.rotateAll(Arrays.copyOfRange(sides, i, i + 50), Arrays.copyOfRange(layers, i, i + 50));
+                    }
+                }
+                catch (InterruptedException ignored) {
+
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threadsNumber * rotations, done.intValue());
+    }
+
     @RepeatedTest(100)
     @DisplayName("Checks if result can be obtained from small test.")
     void smallConcurrentCorrectnessTest() {
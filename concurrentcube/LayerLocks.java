@@ -0,0 +1,11 @@
+package concurrentcube;
+
+// mutual exclusion of rotations of the same layer
+interface LayerLocks {
+    void lock(int layer) throws InterruptedException;
+
+    // gives up after given time, at once if it isn't positive
+    boolean tryLock(int layer, long nanos) throws InterruptedException;
+
+    void unlock(int layer);
+}
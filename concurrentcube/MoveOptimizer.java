@@ -0,0 +1,109 @@
+package concurrentcube;
+
+import java.util.Arrays;
+
+// folds a sequence of rotations into a shorter one with the same effect;
+// rotations of one plane commute as long as they turn different layers, so
+// within a run of rotations of one plane quarter turns of every layer are
+// summed up modulo four, and a run which cancels out lets its neighbours join
+final class MoveOptimizer {
+    private final int size;
+
+    // folded rotations as clockwise quarter turns of plane's first side,
+    // rotations of the last run are kept at the end
+    private final int[] planes;
+    private final int[] layers;
+    private final int[] turns;
+    private int length = 0;
+    private int runStart = 0;
+    // where the rotation of given layer is in the last run, or -1
+    private final int[] position;
+
+    MoveOptimizer(int size, int[] sides, int[] layers) {
+        if (sides.length != layers.length)
+            throw new IllegalArgumentException("got " + sides.length + " sides and " + layers.length + " layers");
+        this.size = size;
+        this.planes = new int[sides.length];
+        this.layers = new int[sides.length];
+        this.turns = new int[sides.length];
+        this.position = new int[size];
+        Arrays.fill(position, -1);
+        for (int i = 0; i < sides.length; i++) {
+            add(sides[i], layers[i]);
+        }
+    }
+
+    // rotation of a side with layer counted from it is the same as
+    // rotation of opposite side and mirrored layer the other way round
+    private void add(int side, int layer) {
+        if (side < 0 || side >= Cube.SIDES_NUMBER || layer < 0 || layer >= size)
+            throw new IllegalArgumentException("no layer " + layer + " of side " + side);
+        if (side < 3)
+            add(side, layer, 1);
+        else
+            add(MoveTable.opposite(side), size - layer - 1, 3);
+    }
+
+    private void add(int plane, int layer, int quarters) {
+        if (length > runStart && planes[runStart] != plane)
+            startRun();
+        int k = position[layer];
+        if (k < 0) {
+            planes[length] = plane;
+            layers[length] = layer;
+            turns[length] = quarters;
+            position[layer] = length++;
+            return;
+        }
+        turns[k] = (turns[k] + quarters) % 4;
+        if (turns[k] == 0)
+            remove(k);
+    }
+
+    private void startRun() {
+        for (int k = runStart; k < length; k++) {
+            position[layers[k]] = -1;
+        }
+        runStart = length;
+    }
+
+    // order within a run doesn't matter, so the last rotation takes the
+    // place of the removed one
+    private void remove(int k) {
+        position[layers[k]] = -1;
+        length--;
+        if (k != length) {
+            planes[k] = planes[length];
+            layers[k] = layers[length];
+            turns[k] = turns[length];
+            position[layers[k]] = k;
+        }
+        if (length == runStart && length > 0) {
+            runStart = length - 1;
+            while (runStart > 0 && planes[runStart - 1] == planes[length - 1]) {
+                runStart--;
+            }
+            for (int r = runStart; r < length; r++) {
+                position[layers[r]] = r;
+            }
+        }
+    }
+
+    int length() {
+        return length;
+    }
+
+    // side and layer to be rotated by k-th folded rotation, three quarter
+    // turns become one turn of the opposite side
+    int side(int k) {
+        return turns[k] == 3 ? MoveTable.opposite(planes[k]) : planes[k];
+    }
+
+    int layer(int k) {
+        return turns[k] == 3 ? size - layers[k] - 1 : layers[k];
+    }
+
+    boolean isHalfTurn(int k) {
+        return turns[k] == 2;
+    }
+}
@@ -0,0 +1,60 @@
+package concurrentcube;
+
+// blocks moved by rotations of every side, strips of blocks are described
+// once here instead of being picked by hand for each side
+final class MoveTable {
+    private static final int FACE = 0;
+    private static final int COLUMN = 1;
+    private static final int REFLECTED = 2;
+    private static final int REVERSED = 3;
+
+    // for each side four strips {face, is column, at reflected layer,
+    // read backwards}, rotation moves blocks of every strip to the previous one
+    private static final int[][][] STRIPS = {
+            {{4, 0, 0, 0}, {1, 0, 0, 0}, {2, 0, 0, 0}, {3, 0, 0, 0}},
+            {{0, 1, 0, 0}, {4, 1, 1, 1}, {5, 1, 0, 0}, {2, 1, 0, 0}},
+            {{0, 0, 1, 0}, {1, 1, 1, 1}, {5, 0, 0, 1}, {3, 1, 0, 0}},
+            {{0, 1, 1, 0}, {2, 1, 1, 0}, {5, 1, 1, 0}, {4, 1, 0, 1}},
+            {{0, 0, 0, 0}, {3, 1, 1, 0}, {5, 0, 1, 1}, {1, 1, 0, 1}},
+            {{2, 0, 1, 0}, {1, 0, 1, 0}, {4, 0, 1, 0}, {3, 0, 1, 0}}
+    };
+
+    private static final int[] OPPOSITE = {5, 3, 4, 1, 2, 0};
+
+    private MoveTable() {
+    }
+
+    static int opposite(int side) {
+        return OPPOSITE[side];
+    }
+
+    // marks faces holding strips moved by rotations of given side
+    static void markFaces(int side, boolean[] faces) {
+        for (int[] strip : STRIPS[side]) {
+            if (!faces[strip[FACE]])
+                faces[strip[FACE]] = true;
+        }
+    }
+
+    // strips of blocks moved by rotations of one layer of a plane, kept so
+    // that a rotation doesn't allocate them; only the rotation holding the
+    // layer sets them
+    static final class LayerStrips {
+        final Strip[] all = {new Strip(), new Strip(), new Strip(), new Strip()};
+        // opposite strips, exchanged by a half turn
+        final Strip[] first = {all[0], all[2]};
+        final Strip[] second = {all[1], all[3]};
+
+        // sets strips moved by rotation of given side and layer
+        LayerStrips set(Side[] sides, int side, int layer) {
+            int reflected = sides[0].layers - layer - 1;
+            int[][] description = STRIPS[side];
+            for (int s = 0; s < description.length; s++) {
+                int[] strip = description[s];
+                sides[strip[FACE]].strip(strip[COLUMN] == 0,
+                        strip[REFLECTED] == 0 ? layer : reflected, strip[REVERSED] == 1, all[s]);
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package concurrentcube;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// one byte per block kept outside of the heap, either in a direct buffer
+// or in a region of a memory mapped file
+public class OffHeapSide extends Side {
+    private static final int FILL_CHUNK = 1 << 16;
+
+    private ByteBuffer blocks;
+
+    public OffHeapSide(int layers, int colour) {
+        this(layers, colour, ByteBuffer.allocateDirect(bytes(layers)));
+    }
+
+    private OffHeapSide(int layers, int colour, ByteBuffer blocks) {
+        super(layers);
+        this.blocks = blocks;
+        byte[] chunk = new byte[Math.min(FILL_CHUNK, blocks.capacity())];
+        Arrays.fill(chunk, (byte) colour);
+        for (int from = 0; from < blocks.capacity(); from += chunk.length) {
+            blocks.put(from, chunk, 0, Math.min(chunk.length, blocks.capacity() - from));
+        }
+    }
+
+    // side number colour is kept in the colour-th region of the file
+    static OffHeapSide mapped(Path file, int layers, int colour) {
+        long bytes = bytes(layers);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, colour * bytes, bytes);
+            return new OffHeapSide(layers, colour, region);
+        }
+        catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    private static int bytes(int layers) {
+        long bytes = (long) layers * layers;
+        if (bytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("side with " + layers + " layers is too big");
+        return (int) bytes;
+    }
+
+    private ByteBuffer blocks() {
+        ByteBuffer current = blocks;
+        if (current == null)
+            throw new IllegalStateException("side is closed");
+        return current;
+    }
+
+    @Override
+    protected int load(int i, int j) {
+        return blocks().get(i * layers + j);
+    }
+
+    @Override
+    protected void store(int i, int j, int colour) {
+        blocks().put(i * layers + j, (byte) colour);
+    }
+
+    // mapped sides are written back to their file, memory itself is given
+    // back once the buffer is no longer reachable
+    @Override
+    public void close() {
+        if (blocks instanceof MappedByteBuffer)
+            ((MappedByteBuffer) blocks).force();
+        blocks = null;
+    }
+}
@@ -0,0 +1,85 @@
+package concurrentcube;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+// three bits per block, 21 blocks in every long; each row starts
+// in a new word, so rows can be swapped word by word
+public class PackedSide extends Side {
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    static final int BITS = 3;
+    static final int PER_WORD = Long.SIZE / BITS;
+    static final long MASK = (1L << BITS) - 1;
+
+    private final int rowWords;
+    private final long[] words;
+
+    public PackedSide(int layers, int colour) {
+        super(layers);
+        this.rowWords = (layers + PER_WORD - 1) / PER_WORD;
+        this.words = new long[layers * rowWords];
+        long filled = 0;
+        for (int k = 0; k < PER_WORD; k++) {
+            filled |= (long) colour << (k * BITS);
+        }
+        Arrays.fill(words, filled);
+    }
+
+    @Override
+    protected int load(int i, int j) {
+        long word = words[i * rowWords + j / PER_WORD];
+        return (int) ((word >>> (j % PER_WORD * BITS)) & MASK);
+    }
+
+    // rotations of different layers of one plane run at once and a column
+    // of one shares words with columns of the others, so a block is
+    // stored with compare-and-set of its word
+    @Override
+    protected void store(int i, int j, int colour) {
+        int w = i * rowWords + j / PER_WORD;
+        int shift = j % PER_WORD * BITS;
+        long word = words[w];
+        while (true) {
+            long witness = (long) WORDS.compareAndExchange(words, w, word,
+                    (word & ~(MASK << shift)) | ((long) colour << shift));
+            if (witness == word)
+                return;
+            word = witness;
+        }
+    }
+
+    // neighbouring blocks share a word, so threads splitting one rotation
+    // would keep retrying each other's stores
+    @Override
+    boolean concurrentStores() {
+        return false;
+    }
+
+    // whole rows read in the same direction are cycled word by word, rows
+    // of other layers never share these words
+    @Override
+    protected void cycleStored(Strip[] strips, int from, int to) {
+        boolean sameDirection = true;
+        for (Strip strip : strips) {
+            sameDirection &= strip.isStoredRow() && strip.dj == strips[0].dj;
+        }
+        if (from != 0 || to != layers || !sameDirection) {
+            super.cycleStored(strips, from, to);
+            return;
+        }
+        int last = strips.length - 1;
+        for (int w = 0; w < rowWords; w++) {
+            long temp = word(strips[0], w);
+            for (int s = 0; s < last; s++) {
+                ((PackedSide) strips[s].side).words[strips[s].i * rowWords + w] = word(strips[s + 1], w);
+            }
+            ((PackedSide) strips[last].side).words[strips[last].i * rowWords + w] = temp;
+        }
+    }
+
+    private long word(Strip strip, int w) {
+        return ((PackedSide) strip.side).words[strip.i * rowWords + w];
+    }
+}
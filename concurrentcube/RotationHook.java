@@ -0,0 +1,7 @@
+package concurrentcube;
+
+// called around a rotation with its side and layer, without boxing them
+@FunctionalInterface
+public interface RotationHook {
+    void accept(int side, int layer);
+}
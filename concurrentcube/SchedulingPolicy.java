@@ -0,0 +1,42 @@
+package concurrentcube;
+
+import java.util.concurrent.TimeUnit;
+
+// decides how long moves of the working type may keep coming in once
+// moves of other types wait, and which waiting type gets the cube next
+public interface SchedulingPolicy {
+    // newcomers wait as soon as anybody waits, cube changes hands often
+    SchedulingPolicy LATENCY = (joined, waitingSince) -> false;
+    // working type may take 64 more moves within 50 microseconds
+    SchedulingPolicy THROUGHPUT = batch(64, 50, TimeUnit.MICROSECONDS);
+
+    // lets up to given number of moves join the working type, but only
+    // within given time since the first waiter came, so waiting types
+    // are never starved for longer than that
+    static SchedulingPolicy batch(int moves, long time, TimeUnit unit) {
+        long quantum = unit.toNanos(time);
+        return (joined, waitingSince) -> joined < moves && System.nanoTime() - waitingSince < quantum;
+    }
+
+    // whether a move of the working type may start although other types
+    // wait; joined moves started that way since the waiting began
+    // (System.nanoTime() at waitingSince)
+    boolean mayJoin(int joined, long waitingSince);
+
+    // type which gets the empty cube, waiting[type] threads wait for each
+    // type and at least one of them is positive; a type nobody waits for
+    // is replaced with the next one round robin
+    default int next(int previous, int[] waiting) {
+        return roundRobin(previous, waiting);
+    }
+
+    // first type after previous one which has waiting threads
+    static int roundRobin(int previous, int[] waiting) {
+        for (int i = 1; i < waiting.length; i++) {
+            int type = (previous + i) % waiting.length;
+            if (waiting[type] != 0)
+                return type;
+        }
+        return previous;
+    }
+}
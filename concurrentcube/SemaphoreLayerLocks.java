@@ -0,0 +1,62 @@
+package concurrentcube;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// one fair semaphore for every layer
+class SemaphoreLayerLocks implements LayerLocks {
+    private final Semaphore[] layerWaiting;
+    private final SpinWait spinWait;
+
+    SemaphoreLayerLocks(int layers, SpinWait spinWait) {
+        this.spinWait = spinWait;
+        layerWaiting = new Semaphore[layers];
+        for (int j = 0; j < layers; j++) {
+            layerWaiting[j] = new Semaphore(1, true);
+        }
+    }
+
+    // plain tryAcquire() would cut ahead of threads queued on the fair
+    // semaphore, the timed one with no time doesn't
+    private static boolean tryAcquireInTurn(Semaphore semaphore) {
+        try {
+            return semaphore.tryAcquire(0, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // spins for a while before waiting on the semaphore
+    @Override
+    public void lock(int layer) throws InterruptedException {
+        Semaphore semaphore = layerWaiting[layer];
+        if (tryAcquireInTurn(semaphore))
+            return;
+        long start = System.nanoTime();
+        if (!spinWait.spin(start, () -> tryAcquireInTurn(semaphore)))
+            semaphore.acquire();
+        spinWait.record(start);
+    }
+
+    @Override
+    public boolean tryLock(int layer, long nanos) throws InterruptedException {
+        Semaphore semaphore = layerWaiting[layer];
+        if (tryAcquireInTurn(semaphore))
+            return true;
+        if (nanos <= 0)
+            return false;
+        long start = System.nanoTime();
+        boolean locked = spinWait.spin(start, () -> tryAcquireInTurn(semaphore))
+                || semaphore.tryAcquire(nanos - (System.nanoTime() - start), TimeUnit.NANOSECONDS);
+        if (locked)
+            spinWait.record(start);
+        return locked;
+    }
+
+    @Override
+    public void unlock(int layer) {
+        layerWaiting[layer].release();
+    }
+}
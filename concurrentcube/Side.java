@@ -1,24 +1,81 @@
 package concurrentcube;
 
-public class Side {
-    private final int layers;
-    private final Block[][] blocks;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-    public Side(int layers, int colour) {
+// one face of the cube, subclasses decide how colours of blocks are stored
+public abstract class Side implements AutoCloseable {
+    // blocks are rotated in square tiles of this size
+    static final int TILE = 64;
+
+    protected final int layers;
+    // number of clockwise quarter turns between stored blocks and
+    // the face as seen from outside
+    private int orientation = 0;
+
+    protected Side(int layers) {
         this.layers = layers;
-        this.blocks = new Block[layers][layers];
-        for (int i = 0; i < layers; i++) {
-            for (int j = 0; j < layers; j++) {
-                blocks[i][j] = new Block(colour);
-            }
-        }
+    }
+
+    // colour of stored block in given row and column
+    protected abstract int load(int i, int j);
+
+    protected abstract void store(int i, int j, int colour);
+
+    // gives back memory held outside of the heap, side can't be used after
+    @Override
+    public void close() {
+    }
+
+    // stored row of block seen in given row and column
+    private int storedRow(int i, int j) {
+        return switch (orientation) {
+            case 0 -> i;
+            case 1 -> layers - j - 1;
+            case 2 -> layers - i - 1;
+            default -> j;
+        };
+    }
+
+    // stored column of block seen in given row and column
+    private int storedColumn(int i, int j) {
+        return switch (orientation) {
+            case 0 -> j;
+            case 1 -> i;
+            case 2 -> layers - j - 1;
+            default -> layers - i - 1;
+        };
+    }
+
+    private int get(int i, int j) {
+        return load(storedRow(i, j), storedColumn(i, j));
+    }
+
+    // block seen in given row and column
+    public Block getBlock(int i, int j) {
+        return Block.of(get(i, j));
+    }
+
+    // sets strip to blocks of given row or column as seen from outside,
+    // possibly read backwards
+    void strip(boolean row, int index, boolean reversed, Strip strip) {
+        int begin = reversed ? layers - 1 : 0, end = reversed ? 0 : layers - 1;
+        int i = row ? index : begin, j = row ? begin : index;
+        int lastI = row ? index : end, lastJ = row ? end : index;
+        int storedI = storedRow(i, j), storedJ = storedColumn(i, j);
+        strip.set(this, storedI, storedJ,
+                Integer.signum(storedRow(lastI, lastJ) - storedI),
+                Integer.signum(storedColumn(lastI, lastJ) - storedJ));
     }
 
     public String toStringArray() {
-        StringBuilder sb = new StringBuilder();
-        for (Block[] layer : blocks) {
-            for (Block block : layer) {
-                sb.append(block.toString());
+        StringBuilder sb = new StringBuilder(layers * (layers + 1));
+        for (int i = 0; i < layers; i++) {
+            for (int j = 0; j < layers; j++) {
+                sb.append((char) ('0' + get(i, j)));
             }
             sb.append("\n");
         }
@@ -27,77 +84,170 @@ public class Side {
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        for (Block[] layer : blocks) {
-            for (Block block : layer) {
-                sb.append(block.toString());
+        StringBuilder sb = new StringBuilder(layers * layers);
+        for (int i = 0; i < layers; i++) {
+            for (int j = 0; j < layers; j++) {
+                sb.append((char) ('0' + get(i, j)));
             }
         }
         return sb.toString();
     }
 
-    public void rotate90Degrees(boolean clockwise) {
+    // colours of blocks row by row as digits, starting at given offset
+    void copyTo(byte[] target, int offset) {
+        copyRows(target, offset, 0, layers);
+    }
+
+    // only rows in [from, to), offset is where the first of them goes
+    void copyRows(byte[] target, int offset, int from, int to) {
+        for (int i = from; i < to; i++) {
+            for (int j = 0; j < layers; j++) {
+                target[offset++] = (byte) ('0' + get(i, j));
+            }
+        }
+    }
+
+    void copyTo(char[] target, int offset) {
         for (int i = 0; i < layers; i++) {
-            for (int j = 0; j < i; j++) {
-                Block temp = blocks[i][j];
-                blocks[i][j] = blocks[j][i];
-                blocks[j][i] = temp;
+            for (int j = 0; j < layers; j++) {
+                target[offset++] = (char) ('0' + get(i, j));
             }
         }
+    }
 
+    void copyTo(ByteBuffer target) {
         for (int i = 0; i < layers; i++) {
-            for (int j = 0; j < layers / 2; j++) {
-                if (clockwise) {
-                    Block temp = blocks[i][j];
-                    blocks[i][j] = blocks[i][layers - j - 1];
-                    blocks[i][layers - j - 1] = temp;
-                }
-                else {
-                    Block temp = blocks[j][i];
-                    blocks[j][i] = blocks[layers - j - 1][i];
-                    blocks[layers - j - 1][i] = temp;
-                }
+            for (int j = 0; j < layers; j++) {
+                target.put((byte) ('0' + get(i, j)));
             }
         }
     }
 
-    private void swapBlocks(int i1, int j1, int i2, int j2, Side other) {
-        Block temp = blocks[i1][j1];
-        blocks[i1][j1] = other.blocks[i2][j2];
-        other.blocks[i2][j2] = temp;
+    // writes colours of blocks row by row, whenever the buffer fills up it is
+    // written out to the channel; buffer may be left with unwritten bytes
+    void writeTo(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        for (int i = 0; i < layers; i++) {
+            for (int j = 0; j < layers; j++) {
+                if (!buffer.hasRemaining())
+                    flush(buffer, channel);
+                buffer.put((byte) ('0' + get(i, j)));
+            }
+        }
     }
 
-    public void swapRowWithRow(int row, int otherRow, boolean reversed, Side other) {
-        for (int j = 0; j < layers; j++) {
-            if (reversed) {
-                swapBlocks(row, j, otherRow, layers - j - 1, other);
-            } else {
-                swapBlocks(row, j, otherRow, j, other);
+    static void flush(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // only changes orientation, stored blocks stay where they are
+    public void rotate90Degrees(boolean clockwise) {
+        orientation = (orientation + (clockwise ? 1 : 3)) % 4;
+    }
+
+    public void rotate180Degrees() {
+        orientation = (orientation + 2) % 4;
+    }
+
+    // moves stored blocks, orientation stays the same
+    public void rotateBlocks90Degrees(boolean clockwise) {
+        rotateBlocks90Degrees(clockwise, null);
+    }
+
+    // rotates blocks tile by tile, tiles are split among threads of the pool
+    // if one is given and storage allows writing blocks concurrently
+    public void rotateBlocks90Degrees(boolean clockwise, ForkJoinPool pool) {
+        rotateBlocks(clockwise ? 1 : 3, pool);
+    }
+
+    // swaps blocks in pairs instead of rotating by a quarter twice
+    public void rotateBlocks180Degrees(ForkJoinPool pool) {
+        rotateBlocks(2, pool);
+    }
+
+    private void rotateBlocks(int turns, ForkJoinPool pool) {
+        if (pool == null || !concurrentStores())
+            rotateTiles(0, layers / 2, turns);
+        else
+            pool.invoke(new TileRotation(0, layers / 2, turns));
+    }
+
+    // whether different blocks can be stored by different threads at once
+    boolean concurrentStores() {
+        return true;
+    }
+
+    // each block (i, j) of upper left quarter with i in [from, to) starts
+    // a cycle of four blocks which are moved together by given number of
+    // clockwise quarter turns
+    private void rotateTiles(int from, int to, int turns) {
+        int columns = (layers + 1) / 2;
+        for (int tileRow = from; tileRow < to; tileRow += TILE) {
+            for (int tileColumn = 0; tileColumn < columns; tileColumn += TILE) {
+                for (int i = tileRow; i < Math.min(tileRow + TILE, to); i++) {
+                    for (int j = tileColumn; j < Math.min(tileColumn + TILE, columns); j++) {
+                        rotateCycle(i, j, turns);
+                    }
+                }
             }
         }
     }
 
-    public void swapColumnWithColumn(int column, int otherColumn, boolean reversed, Side other) {
-        for (int i = 0; i < layers; i++) {
-            if (reversed) {
-                swapBlocks(i, column, layers - i - 1, otherColumn, other);
-            } else {
-                swapBlocks(i, column, i, otherColumn, other);
+    private void rotateCycle(int i, int j, int turns) {
+        int last = layers - 1;
+        int a = load(i, j), b = load(last - j, i), c = load(last - i, last - j), d = load(j, last - i);
+        switch (turns) {
+            case 1 -> {
+                store(i, j, b);
+                store(last - j, i, c);
+                store(last - i, last - j, d);
+                store(j, last - i, a);
+            }
+            case 2 -> {
+                store(i, j, c);
+                store(last - j, i, d);
+                store(last - i, last - j, a);
+                store(j, last - i, b);
+            }
+            default -> {
+                store(i, j, d);
+                store(last - j, i, a);
+                store(last - i, last - j, b);
+                store(j, last - i, c);
             }
         }
     }
 
-    public void swapRowWithColumn(int row, int column, boolean reversed, Side other) {
-        for (int j = 0; j < layers; j++) {
-            if (reversed) {
-                swapBlocks(row, j, layers - j - 1, column, other);
-            } else {
-                swapBlocks(row, j, j, column, other);
+    // tasks are never serialized
+    @SuppressWarnings("serial")
+    private class TileRotation extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final int turns;
+
+        TileRotation(int from, int to, int turns) {
+            this.from = from;
+            this.to = to;
+            this.turns = turns;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TILE) {
+                rotateTiles(from, to, turns);
+                return;
             }
+            int middle = from + Math.max(TILE, (to - from) / 2 / TILE * TILE);
+            invokeAll(new TileRotation(from, middle, turns), new TileRotation(middle, to, turns));
         }
     }
 
-    public void swapColumnWithRow(int column, int row, boolean reversed, Side other) {
-        other.swapRowWithColumn(row, column, reversed, this);
+    // cycles blocks of strips of sides of the same kind, subclasses may
+    // move many blocks at once
+    protected void cycleStored(Strip[] strips, int from, int to) {
+        Strip.moveBlocks(strips, from, to);
     }
 }
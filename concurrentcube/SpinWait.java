@@ -0,0 +1,48 @@
+package concurrentcube;
+
+import java.util.function.BooleanSupplier;
+
+// decides how long a thread spins before it parks, spinning pays off only
+// if waits are short, so budget follows recently observed waiting times
+final class SpinWait {
+    private static final long MAX_SPIN_NANOS = 20_000;
+    // there is no point in spinning with one processor
+    private static final boolean MULTIPROCESSOR = Runtime.getRuntime().availableProcessors() > 1;
+
+    private final boolean enabled;
+    // moving average of waiting times, racy updates are fine here
+    private volatile long averageWait = MAX_SPIN_NANOS / 4;
+
+    SpinWait(boolean enabled) {
+        this.enabled = enabled && MULTIPROCESSOR;
+    }
+
+    // twice the average wait, nothing if waits are too long to spin through
+    private long budget() {
+        long average = averageWait;
+        return average > MAX_SPIN_NANOS ? 0 : Math.min(MAX_SPIN_NANOS, 2 * average);
+    }
+
+    // spins until condition holds or budget runs out, returns whether
+    // condition holds; start is System.nanoTime() when waiting began
+    boolean spin(long start, BooleanSupplier condition) {
+        if (!enabled)
+            return condition.getAsBoolean();
+        long budget = budget();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - start >= budget)
+                return false;
+            Thread.onSpinWait();
+        }
+        return true;
+    }
+
+    // notes that waiting which began at start has ended
+    void record(long start) {
+        if (!enabled)
+            return;
+        long wait = System.nanoTime() - start;
+        long average = averageWait;
+        averageWait = average + (wait - average) / 8;
+    }
+}
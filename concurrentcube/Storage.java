@@ -0,0 +1,22 @@
+package concurrentcube;
+
+import java.nio.file.Path;
+
+// decides how sides of a cube keep colours of their blocks
+@FunctionalInterface
+public interface Storage {
+    // one byte per block
+    Storage BYTES = ByteSide::new;
+    // three bits per block, 21 blocks in a long
+    Storage PACKED = PackedSide::new;
+    // one byte per block in direct buffers outside of the heap
+    Storage OFF_HEAP = OffHeapSide::new;
+
+    // one byte per block in given file mapped into memory, sides are kept
+    // one after another
+    static Storage mapped(Path file) {
+        return (layers, colour) -> OffHeapSide.mapped(file, layers, colour);
+    }
+
+    Side newSide(int layers, int colour);
+}
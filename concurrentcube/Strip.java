@@ -0,0 +1,104 @@
+package concurrentcube;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// line of blocks of one side, k-th block of the strip is stored
+// at (i + k * di, j + k * dj); strips are reused, so they are set
+// again before every rotation
+final class Strip {
+    // smallest number of blocks of a strip moved by one task
+    static final int CHUNK = 1 << 12;
+
+    Side side;
+    int i;
+    int j;
+    int di;
+    int dj;
+    // same as above for blocks stored row by row in one array
+    int start;
+    int step;
+
+    void set(Side side, int i, int j, int di, int dj) {
+        this.side = side;
+        this.i = i;
+        this.j = j;
+        this.di = di;
+        this.dj = dj;
+        this.start = i * side.layers + j;
+        this.step = di * side.layers + dj;
+    }
+
+    boolean isStoredRow() {
+        return di == 0;
+    }
+
+    int load(int k) {
+        return side.load(i + k * di, j + k * dj);
+    }
+
+    void store(int k, int colour) {
+        side.store(i + k * di, j + k * dj, colour);
+    }
+
+    // every strip takes blocks of the next one and the last one takes blocks
+    // of the first one, only blocks with k in [from, to) are moved
+    static void cycle(Strip[] strips, int from, int to) {
+        Side first = strips[0].side;
+        for (Strip strip : strips) {
+            if (strip.side.getClass() != first.getClass()) {
+                moveBlocks(strips, from, to);
+                return;
+            }
+        }
+        first.cycleStored(strips, from, to);
+    }
+
+    // same as cycle, ranges of blocks are moved by threads of the pool
+    // if all sides allow storing blocks concurrently
+    static void cycle(Strip[] strips, ForkJoinPool pool) {
+        int length = strips[0].side.layers;
+        boolean concurrent = pool != null && length > CHUNK;
+        for (Strip strip : strips) {
+            concurrent &= strip.side.concurrentStores();
+        }
+        if (concurrent)
+            pool.invoke(new Cycle(strips, 0, length));
+        else
+            cycle(strips, 0, length);
+    }
+
+    static void moveBlocks(Strip[] strips, int from, int to) {
+        int last = strips.length - 1;
+        for (int k = from; k < to; k++) {
+            int temp = strips[0].load(k);
+            for (int s = 0; s < last; s++) {
+                strips[s].store(k, strips[s + 1].load(k));
+            }
+            strips[last].store(k, temp);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class Cycle extends RecursiveAction {
+        private final Strip[] strips;
+        private final int from;
+        private final int to;
+
+        Cycle(Strip[] strips, int from, int to) {
+            this.strips = strips;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK) {
+                cycle(strips, from, to);
+                return;
+            }
+            int middle = from + Math.max(CHUNK, (to - from) / 2 / CHUNK * CHUNK);
+            invokeAll(new Cycle(strips, from, middle), new Cycle(strips, middle, to));
+        }
+    }
+}
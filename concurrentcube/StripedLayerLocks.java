@@ -0,0 +1,102 @@
+package concurrentcube;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// one bit for every layer taken with compare and set, threads which have
+// to wait park on one of a fixed number of stripes, so memory doesn't grow
+// with number of layers beyond the bits; waiting is not fair
+class StripedLayerLocks implements LayerLocks {
+    private final AtomicLongArray bits;
+    private final ReentrantLock[] locks;
+    private final Condition[] released;
+    private final AtomicInteger[] waiting;
+    private final SpinWait spinWait;
+
+    StripedLayerLocks(int layers, int stripes, SpinWait spinWait) {
+        this.bits = new AtomicLongArray((layers + Long.SIZE - 1) / Long.SIZE);
+        this.locks = new ReentrantLock[stripes];
+        this.released = new Condition[stripes];
+        this.waiting = new AtomicInteger[stripes];
+        this.spinWait = spinWait;
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantLock();
+            released[i] = locks[i].newCondition();
+            waiting[i] = new AtomicInteger();
+        }
+    }
+
+    private boolean tryLock(int layer) {
+        int word = layer / Long.SIZE;
+        long bit = 1L << (layer % Long.SIZE);
+        while (true) {
+            long current = bits.get(word);
+            if ((current & bit) != 0)
+                return false;
+            if (bits.compareAndSet(word, current, current | bit))
+                return true;
+        }
+    }
+
+    @Override
+    public void lock(int layer) throws InterruptedException {
+        if (tryLock(layer))
+            return;
+        long start = System.nanoTime();
+        if (!spinWait.spin(start, () -> tryLock(layer)))
+            park(layer, Long.MAX_VALUE);
+        spinWait.record(start);
+    }
+
+    @Override
+    public boolean tryLock(int layer, long nanos) throws InterruptedException {
+        if (tryLock(layer))
+            return true;
+        if (nanos <= 0)
+            return false;
+        long start = System.nanoTime();
+        boolean locked = spinWait.spin(start, () -> tryLock(layer))
+                || park(layer, nanos - (System.nanoTime() - start));
+        if (locked)
+            spinWait.record(start);
+        return locked;
+    }
+
+    // waits at most given time, tells whether layer was taken
+    private boolean park(int layer, long nanos) throws InterruptedException {
+        int stripe = layer % locks.length;
+        locks[stripe].lock();
+        waiting[stripe].incrementAndGet();
+        try {
+            while (!tryLock(layer)) {
+                if (nanos <= 0)
+                    return false;
+                nanos = released[stripe].awaitNanos(nanos);
+            }
+            return true;
+        }
+        finally {
+            waiting[stripe].decrementAndGet();
+            locks[stripe].unlock();
+        }
+    }
+
+    @Override
+    public void unlock(int layer) {
+        int word = layer / Long.SIZE;
+        long bit = 1L << (layer % Long.SIZE);
+        while (true) {
+            long current = bits.get(word);
+            if (bits.compareAndSet(word, current, current & ~bit))
+                break;
+        }
+        int stripe = layer % locks.length;
+        if (waiting[stripe].get() != 0) {
+            locks[stripe].lock();
+            released[stripe].signalAll();
+            locks[stripe].unlock();
+        }
+    }
+}